@@ -0,0 +1,46 @@
+// package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Bridges lox.bench.Pipeline to the interpreter's package-private classes,
+// running each stage the way Main's run command does.
+public class PipelineStages implements lox.bench.Pipeline {
+    @Override
+    public int scan(ByteBuffer source) {
+        TokenBuffer tokens = new TokenBuffer(new Scanner(source));
+        int count = 1;
+        while (tokens.peekType() != TokenType.EOF) {
+            tokens.advance();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public Object parse(ByteBuffer source) {
+        return new Parser(new Scanner(source)).parseStatements();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object optimize(Object statements) {
+        return new Optimizer().optimize((List<Stmt>) statements);
+    }
+
+    // Resolving only rewrites depths, slots and frame sizes, so the same
+    // tree can be resolved again.
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object resolve(Object statements) {
+        new Resolver().resolve((List<Stmt>) statements);
+        return statements;
+    }
+
+    // A fresh interpreter each time, as each `run` starts with empty globals.
+    @Override
+    @SuppressWarnings("unchecked")
+    public void interpret(Object statements) {
+        new Interpreter().interpretStatements((List<Stmt>) statements);
+    }
+}
@@ -0,0 +1,22 @@
+package lox.bench;
+
+import java.nio.ByteBuffer;
+
+// The interpreter's stages as the benchmarks drive them. Its classes live
+// in the unnamed package, which a named package such as this one cannot
+// import, and JMH will not generate code for benchmarks outside a package;
+// so PipelineStages implements this from the unnamed package and the
+// benchmarks load it once by name. Trees are passed as Object for the same
+// reason.
+public interface Pipeline {
+    // Returns the number of tokens, so the walk cannot be optimised away.
+    int scan(ByteBuffer source);
+
+    Object parse(ByteBuffer source);
+
+    Object optimize(Object statements);
+
+    Object resolve(Object statements);
+
+    void interpret(Object statements);
+}
@@ -0,0 +1,90 @@
+package lox.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Throughput of each stage over the corpus in src/jmh/resources/corpus.
+// Every stage but the one measured is done once in setup: resolve and
+// interpret work on a tree that was parsed and optimised ahead of time,
+// as Main's run command would hand it over.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+    @Param({"fib", "binary_trees", "method_calls", "strings", "fields"})
+    public String program;
+
+    private Pipeline pipeline;
+    private ByteBuffer source;
+    private Object optimized;
+    private Object resolved;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        pipeline = (Pipeline) Class.forName("PipelineStages").getDeclaredConstructor().newInstance();
+        try (InputStream in = PipelineBenchmark.class.getResourceAsStream("/corpus/" + program + ".lox")) {
+            source = ByteBuffer.wrap(in.readAllBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        optimized = pipeline.optimize(pipeline.parse(source));
+        resolved = pipeline.resolve(pipeline.optimize(pipeline.parse(source)));
+        // The programs print; only the interpreter's work is measured.
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public int scan() {
+        return pipeline.scan(source);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return pipeline.parse(source);
+    }
+
+    @Benchmark
+    public Object resolve() {
+        return pipeline.resolve(optimized);
+    }
+
+    @Benchmark
+    public void interpret() {
+        pipeline.interpret(resolved);
+    }
+
+    // Entry point of benchmarks.jar: the usual JMH command line, with the
+    // GC profiler always on so every result carries its allocation rate.
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options).addProfiler(GCProfiler.class);
+        if (options.getIncludes().isEmpty()) {
+            builder.include(PipelineBenchmark.class.getSimpleName());
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,104 @@
+// package com.craftinginterpreters.lox;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+// Checks every .lox file under a directory on the common fork-join pool.
+// "tokenize" only scans; "parse" also parses the file as a script and runs
+// the Resolver, i.e. every static check `run` makes before executing.
+// Results are printed in path order once all files are done.
+class Batch {
+    private final String command;
+    private final List<Path> files;
+    private final List<List<String>> results;
+
+    private Batch(String command, List<Path> files) {
+        this.command = command;
+        this.files = files;
+        this.results = new ArrayList<>(Collections.nCopies(files.size(), null));
+    }
+
+    // Returns true when every file passed.
+    static boolean run(String command, Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk
+                .filter(path -> path.toString().endsWith(".lox") && Files.isRegularFile(path))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        Batch batch = new Batch(command, files);
+        ForkJoinPool.commonPool().invoke(batch.new Check(0, files.size()));
+        int failed = 0;
+        for (int i = 0; i < files.size(); i++) {
+            List<String> errors = batch.results.get(i);
+            if (errors.isEmpty()) {
+                System.out.println(files.get(i) + ": ok");
+                continue;
+            }
+            failed++;
+            System.out.println(files.get(i) + ": " + errors.size() + " error(s)");
+            for (String error : errors) {
+                System.err.println(files.get(i) + ": " + error);
+            }
+        }
+        System.out.println(files.size() + " files, " + failed + " with errors");
+        return failed == 0;
+    }
+
+    private List<String> check(Path file) {
+        List<String> errors = new ArrayList<>();
+        ByteBuffer source;
+        try {
+            source = Lox.readSource(file);
+        } catch (IOException e) {
+            errors.add("Error reading file: " + e.getMessage());
+            return errors;
+        }
+        Lox.diagnostics.set(errors);
+        try {
+            Scanner scanner = new Scanner(source);
+            if (command.equals("parse")) {
+                List<Stmt> statements = new Parser(scanner).parseStatements();
+                if (errors.isEmpty()) {
+                    new Resolver().resolve(statements);
+                }
+            } else {
+                TokenBuffer tokens = new TokenBuffer(scanner);
+                while (tokens.peekType() != TokenType.EOF) {
+                    tokens.advance();
+                }
+            }
+        } finally {
+            Lox.diagnostics.remove();
+        }
+        return errors;
+    }
+
+    // Splits the file range in halves down to single files.
+    private class Check extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        Check(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    results.set(from, check(files.get(from)));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Check(from, middle), new Check(middle, to));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+// package com.craftinginterpreters.lox;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// The `bench` command: runs a script repeatedly in this JVM and prints
+// JSON timings. Each run is what `run` does from scratch, from scanning to
+// execution in a fresh Interpreter, so front-end cost counts and no run
+// inherits globals, or inline caches from another.
+// Warmup runs let the JIT settle and are not reported.
+class Bench {
+    private final ByteBuffer source;
+    private final String engine;
+    private final com.sun.management.ThreadMXBean threads;
+
+    private Bench(ByteBuffer source, String engine) {
+        this.source = source;
+        this.engine = engine;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // Allocation counting is a HotSpot extension; without it bytes
+        // are reported as -1.
+        this.threads = bean instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    // Stops at the first run with an error, leaving Lox's flags set for
+    // Main to exit on; nothing is printed then.
+    static void run(String script, ByteBuffer source, String engine, int warmup, int iterations) {
+        Bench bench = new Bench(source, engine);
+        long[] times = new long[iterations];
+        long[] bytes = new long[iterations];
+        long gcCount;
+        long gcTime;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < warmup; i++) {
+                if (!bench.once()) return;
+            }
+            gcCount = -gcCount();
+            gcTime = -gcTime();
+            for (int i = 0; i < iterations; i++) {
+                long allocated = bench.allocated();
+                long start = System.nanoTime();
+                if (!bench.once()) return;
+                times[i] = System.nanoTime() - start;
+                bytes[i] = allocated < 0 ? -1 : bench.allocated() - allocated;
+            }
+            gcCount += gcCount();
+            gcTime += gcTime();
+        } finally {
+            System.setOut(out);
+        }
+        Arrays.sort(times);
+        Arrays.sort(bytes);
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"script\": ").append(quote(script)).append(",\n");
+        json.append("  \"engine\": ").append(quote(engine)).append(",\n");
+        json.append("  \"warmup\": ").append(warmup).append(",\n");
+        json.append("  \"iterations\": ").append(iterations).append(",\n");
+        json.append("  \"wall_ns\": {")
+            .append("\"min\": ").append(times[0])
+            .append(", \"median\": ").append(percentile(times, 50))
+            .append(", \"p99\": ").append(percentile(times, 99))
+            .append(", \"max\": ").append(times[times.length - 1])
+            .append(", \"mean\": ").append(mean(times)).append("},\n");
+        json.append("  \"allocated_bytes\": {")
+            .append("\"min\": ").append(bytes[0])
+            .append(", \"median\": ").append(percentile(bytes, 50))
+            .append(", \"mean\": ").append(mean(bytes)).append("},\n");
+        json.append("  \"gc\": {")
+            .append("\"count\": ").append(gcCount)
+            .append(", \"time_ms\": ").append(gcTime).append("}\n");
+        json.append("}");
+        System.out.println(json);
+    }
+
+    // One whole run; false if it reported an error.
+    private boolean once() {
+        LoxEvents.Phase phase = LoxEvents.phase("parse");
+        List<Stmt> statements = new Parser(new Scanner(source)).parseStatements();
+        LoxEvents.end(phase);
+        if (Lox.hadError) return false;
+        phase = LoxEvents.phase("optimize");
+        statements = new Optimizer().optimize(statements);
+        LoxEvents.end(phase);
+        phase = LoxEvents.phase("resolve");
+        new Resolver().resolve(statements);
+        LoxEvents.end(phase);
+        if (Lox.hadError) return false;
+        Main.execute(new Interpreter(), statements, engine);
+        return !Lox.hadError && !Lox.hadRuntimeError;
+    }
+
+    private long allocated() {
+        return threads == null ? -1 : threads.getCurrentThreadAllocatedBytes();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    // Nearest-rank percentile of sorted values.
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static long mean(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,53 @@
+// package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+// A compiled function body: the code stream, the source line of every byte
+// and the constant pool the code indexes into.
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    // Inline caches of the property instructions, by the offset of their
+    // opcode; created as each one first runs.
+    private InlineCache[] caches;
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    InlineCache cache(int offset) {
+        if (caches == null) caches = new InlineCache[count];
+        InlineCache cache = caches[offset];
+        if (cache == null) {
+            cache = new InlineCache();
+            caches[offset] = cache;
+        }
+        return cache;
+    }
+
+    // Numbers and names are deduplicated; functions are always distinct.
+    int addConstant(Object value) {
+        if (!(value instanceof VM.Proto)) {
+            Integer existing = constantIndex.get(value);
+            if (existing != null) return existing;
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        if (!(value instanceof VM.Proto)) {
+            constantIndex.put(value, constantCount);
+        }
+        return constantCount++;
+    }
+}
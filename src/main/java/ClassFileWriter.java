@@ -0,0 +1,385 @@
+// package com.craftinginterpreters.lox;
+
+import java.io.*;
+import java.util.*;
+
+// Minimal class-file assembler used by JvmCompiler. It writes version 49
+// class files, which the JVM verifies by type inference, so no StackMapTable
+// has to be computed. Only the instructions the compiler needs are here;
+// each tracks its stack effect so max_stack comes out exact.
+class ClassFileWriter {
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Thrown when a method outgrows what 16-bit branches and operands allow;
+    // the caller falls back to tree-walking that code.
+    static class TooLargeException extends RuntimeException {
+        TooLargeException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    int utf8(String value) {
+        String key = "U" + value;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return register(key, 1);
+    }
+
+    int classRef(String internalName) {
+        String key = "C" + internalName;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int name = utf8(internalName);
+        writeEntry(7, name);
+        return register(key, 1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = tag + owner + "." + name + ":" + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        writeEntry(tag, ownerIndex, nameAndType);
+        return register(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        writeEntry(12, nameIndex, descriptorIndex);
+        return register(key, 1);
+    }
+
+    private void writeEntry(int tag, int... shorts) {
+        try {
+            pool.writeByte(tag);
+            for (int value : shorts) {
+                pool.writeShort(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int register(String key, int slots) {
+        int index = poolCount;
+        poolCount += slots;
+        if (poolCount > 0xffff) {
+            throw new TooLargeException("Constant pool overflow.");
+        }
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String name, String descriptor, int argumentSlots) {
+        return new Code(access, name, descriptor, argumentSlots);
+    }
+
+    byte[] toByteArray(int access, String thisClass, String superClass, String... interfaces) {
+        int thisIndex = classRef(thisClass);
+        int superIndex = classRef(superClass);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndexes.length);
+            for (int index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static class Label {
+        private int position = -1;
+        private int stack = -1;
+        private final List<Integer> branches = new ArrayList<>();
+    }
+
+    // One method body under construction.
+    class Code {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Code(int access, String name, String descriptor, int argumentSlots) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = argumentSlots;
+        }
+
+        void aconstNull() { op(0x01, 1); }
+        void dup() { op(0x59, 1); }
+        void dupX1() { op(0x5a, 1); }
+        void dupX2() { op(0x5b, 1); }
+        void pop() { op(0x57, -1); }
+        void swap() { op(0x5f, 0); }
+        void aaload() { op(0x32, -1); }
+        void aastore() { op(0x53, -3); }
+        void areturn() { op(0xb0, -1); }
+        void vreturn() { op(0xb1, 0); }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10, 1);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11, 1);
+                writeShort(value);
+            } else {
+                throw new TooLargeException("Integer operand out of range.");
+            }
+        }
+
+        void aload(int local) { local(0x19, local, 1); }
+        void astore(int local) { local(0x3a, local, -1); }
+
+        void getfield(String owner, String name, String descriptor) {
+            op(0xb4, slots(descriptor) - 1);
+            writeShort(fieldRef(owner, name, descriptor));
+        }
+
+        void putfield(String owner, String name, String descriptor) {
+            op(0xb5, -slots(descriptor) - 1);
+            writeShort(fieldRef(owner, name, descriptor));
+        }
+
+        void getstatic(String owner, String name, String descriptor) {
+            op(0xb2, slots(descriptor));
+            writeShort(fieldRef(owner, name, descriptor));
+        }
+
+        void invokevirtual(String owner, String name, String descriptor) {
+            op(0xb6, callEffect(descriptor) - 1);
+            writeShort(methodRef(owner, name, descriptor));
+        }
+
+        void invokespecial(String owner, String name, String descriptor) {
+            op(0xb7, callEffect(descriptor) - 1);
+            writeShort(methodRef(owner, name, descriptor));
+        }
+
+        void invokestatic(String owner, String name, String descriptor) {
+            op(0xb8, callEffect(descriptor));
+            writeShort(methodRef(owner, name, descriptor));
+        }
+
+        void invokeinterface(String owner, String name, String descriptor) {
+            op(0xb9, callEffect(descriptor) - 1);
+            writeShort(interfaceMethodRef(owner, name, descriptor));
+            code.write(argumentSlots(descriptor) + 1);
+            code.write(0);
+        }
+
+        void anew(String internalName) {
+            op(0xbb, 1);
+            writeShort(classRef(internalName));
+        }
+
+        void checkcast(String internalName) {
+            op(0xc0, 0);
+            writeShort(classRef(internalName));
+        }
+
+        Label label() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void mark(Label label) {
+            label.position = code.size();
+            // Code after an unconditional jump is only reached through the
+            // label, so its recorded depth is the real one.
+            if (label.stack >= 0) {
+                stack = label.stack;
+            } else {
+                label.stack = stack;
+            }
+        }
+
+        void ifeq(Label label) { branch(0x99, -1, label); }
+        void ifne(Label label) { branch(0x9a, -1, label); }
+        void jump(Label label) { branch(0xa7, 0, label); }
+
+        private void branch(int opcode, int effect, Label label) {
+            label.branches.add(code.size());
+            op(opcode, effect);
+            writeShort(0);
+            label.stack = stack;
+        }
+
+        void end() {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length > 0xffff) {
+                throw new TooLargeException("Method too large.");
+            }
+            for (Label label : labels) {
+                for (int at : label.branches) {
+                    int offset = label.position - at;
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new TooLargeException("Branch offset out of range.");
+                    }
+                    bytes[at + 1] = (byte) (offset >> 8);
+                    bytes[at + 2] = (byte) offset;
+                }
+            }
+            ByteArrayOutputStream method = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(method);
+            try {
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + bytes.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeShort(0);
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            methods.add(method.toByteArray());
+        }
+
+        private void local(int opcode, int local, int effect) {
+            if (local >= maxLocals) maxLocals = local + 1;
+            if (local < 4) {
+                // aload_<n> and astore_<n> follow their wide forms in the table.
+                op((opcode == 0x19 ? 0x2a : 0x4b) + local, effect);
+            } else if (local < 256) {
+                op(opcode, effect);
+                code.write(local);
+            } else {
+                op(0xc4, 0);
+                op(opcode, effect);
+                writeShort(local);
+            }
+        }
+
+        private void op(int opcode, int effect) {
+            code.write(opcode);
+            stack += effect;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void writeShort(int value) {
+            code.write((value >> 8) & 0xff);
+            code.write(value & 0xff);
+        }
+    }
+
+    private static int callEffect(String descriptor) {
+        int close = descriptor.indexOf(')');
+        return slots(descriptor.substring(close + 1)) - argumentSlots(descriptor);
+    }
+
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                slots += 2;
+                i++;
+                continue;
+            }
+            while (c == '[') c = descriptor.charAt(++i);
+            if (c == 'L') i = descriptor.indexOf(';', i);
+            slots++;
+            i++;
+        }
+        return slots;
+    }
+
+    private static int slots(String type) {
+        switch (type.charAt(0)) {
+            case 'V': return 0;
+            case 'J':
+            case 'D': return 2;
+            default: return 1;
+        }
+    }
+}
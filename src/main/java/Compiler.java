@@ -0,0 +1,649 @@
+// package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+// Compiles a resolved program to bytecode for the VM. Runs after the
+// Resolver, so static errors are already reported; names the Resolver left
+// as Expr.GLOBAL become global instructions and everything else is found
+// in the enclosing functions' locals or captured as an upvalue.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_CONSTANTS = 65536;
+    private static final int MAX_SYMBOL = 65535;
+    private static final int MAX_JUMP = 65535;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    // Per-function compilation state, chained to the enclosing function.
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VM.Proto function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        int stackDepth = 0;
+
+        FunctionState(FunctionState enclosing, VM.Proto function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    private FunctionState current;
+    private int line = 1;
+
+    VM.Proto compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VM.Proto("script", 0), FunctionType.SCRIPT);
+        // Slot zero of every frame holds the callee itself.
+        current.locals.add(new Local("", 0));
+        adjustStack(1);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = identifierConstant(stmt.name);
+        Expr.Variable className = classVariable(stmt.name);
+        emitOpShort(OpCode.CLASS, nameConstant);
+        defineVariable(stmt.name);
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            beginScope();
+            addLocal(stmt.superclass.name, "super");
+            namedVariable(stmt.name, className, false);
+            line = stmt.superclass.name.line;
+            emitOp(OpCode.INHERIT);
+        }
+
+        namedVariable(stmt.name, className, false);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme.equals("init")
+                ? FunctionType.INITIALIZER
+                : FunctionType.METHOD;
+            function(method, type);
+            emitOpShort(OpCode.METHOD, identifierConstant(method.name));
+        }
+        emitOp(OpCode.POP);
+
+        if (stmt.superclass != null) {
+            endScope();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        // Locals are declared before the body so the function can call itself.
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name, stmt.name.lexeme);
+            function(stmt, FunctionType.FUNCTION);
+        } else {
+            function(stmt, FunctionType.FUNCTION);
+            emitOpShort(OpCode.DEFINE_GLOBAL, globalSymbol(stmt.name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        // The condition is still on the stack when the else path starts.
+        adjustStack(1);
+        emitOp(OpCode.POP);
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOpByte(OpCode.GET_LOCAL, 0);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        line = stmt.name.line;
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name, stmt.name.lexeme);
+        } else {
+            emitOpShort(OpCode.DEFINE_GLOBAL, globalSymbol(stmt.name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = currentChunk().count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        adjustStack(1);
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        namedVariable(expr.name, expr, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL:    emitOp(OpCode.NOT_EQUAL); break;
+            case EQUAL_EQUAL:   emitOp(OpCode.EQUAL); break;
+            case GREATER:       emitOp(OpCode.GREATER); break;
+            case GREATER_EQUAL: emitOp(OpCode.GREATER_EQUAL); break;
+            case LESS:          emitOp(OpCode.LESS); break;
+            case LESS_EQUAL:    emitOp(OpCode.LESS_EQUAL); break;
+            case MINUS:         emitOp(OpCode.SUBTRACT); break;
+            case PLUS:          emitOp(OpCode.ADD); break;
+            case SLASH:         emitOp(OpCode.DIVIDE); break;
+            case STAR:          emitOp(OpCode.MULTIPLY); break;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int argCount = expr.arguments.size();
+        // Method calls skip the bound-method allocation. Only used when the
+        // property and the parenthesis share a line, so errors from either
+        // half of the call are still reported on the line the tree-walker uses.
+        if (expr.callee instanceof Expr.Get
+                && ((Expr.Get) expr.callee).name.line == expr.paren.line) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitOpShort(OpCode.INVOKE, identifierConstant(get.name));
+            emitByte(argCount);
+            adjustStack(-argCount);
+            return null;
+        }
+        if (expr.callee instanceof Expr.Super
+                && ((Expr.Super) expr.callee).method.line == expr.paren.line) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            namedVariable(superExpr.keyword, thisVariable(superExpr.keyword), false);
+            compileArguments(expr.arguments);
+            namedVariable(superExpr.keyword, superExpr, false);
+            line = expr.paren.line;
+            emitOpShort(OpCode.SUPER_INVOKE, identifierConstant(superExpr.method));
+            emitByte(argCount);
+            adjustStack(-argCount - 1);
+            return null;
+        }
+        compile(expr.callee);
+        compileArguments(expr.arguments);
+        line = expr.paren.line;
+        emitOpByte(OpCode.CALL, argCount);
+        adjustStack(-argCount);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOpShort(OpCode.GET_PROPERTY, identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (expr.value.equals(Boolean.TRUE)) {
+            emitOp(OpCode.TRUE);
+        } else if (expr.value.equals(Boolean.FALSE)) {
+            emitOp(OpCode.FALSE);
+        } else {
+            emitOpShort(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOpShort(OpCode.SET_PROPERTY, identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable(expr.keyword, thisVariable(expr.keyword), false);
+        namedVariable(expr.keyword, expr, false);
+        line = expr.method.line;
+        emitOpShort(OpCode.GET_SUPER, identifierConstant(expr.method));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable(expr.keyword, expr, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.BANG) {
+            emitOp(OpCode.NOT);
+        } else {
+            emitOp(OpCode.NEGATE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        namedVariable(expr.name, expr, false);
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    private void function(Stmt.Function declaration, FunctionType type) {
+        FunctionState state = new FunctionState(current,
+            new VM.Proto(declaration.name.lexeme, declaration.params.size()), type);
+        current = state;
+        beginScope();
+        current.locals.add(new Local(type == FunctionType.FUNCTION ? "" : "this", current.scopeDepth));
+        adjustStack(1);
+        for (Token param : declaration.params) {
+            adjustStack(1);
+            addLocal(param, param.lexeme);
+        }
+        for (Stmt statement : declaration.body) {
+            compile(statement);
+        }
+        emitReturn();
+        current = state.enclosing;
+
+        state.function.upvalueCount = state.upvalues.size();
+        line = declaration.name.line;
+        emitOpShort(OpCode.CLOSURE, makeConstant(state.function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    // A reference to the class being declared, local or global depending on
+    // where the declaration sits.
+    private Expr.Variable classVariable(Token name) {
+        Expr.Variable expr = new Expr.Variable(name);
+        if (current.scopeDepth > 0) {
+            expr.depth = 0;
+        }
+        return expr;
+    }
+
+    // A synthetic "this" reference carrying the Resolver's verdict for the
+    // super expression it accompanies; only its locality matters here.
+    private Expr.This thisVariable(Token keyword) {
+        Expr.This expr = new Expr.This(new Token(TokenType.THIS, "this", null, keyword.line));
+        expr.depth = 0;
+        return expr;
+    }
+
+    private void namedVariable(Token name, Expr.Resolvable expr, boolean assign) {
+        String lexeme = expr instanceof Expr.Super ? "super"
+            : expr instanceof Expr.This ? "this"
+            : name.lexeme;
+        byte getOp;
+        byte setOp;
+        int arg;
+        if (expr.depth == Expr.GLOBAL) {
+            getOp = OpCode.GET_GLOBAL;
+            setOp = OpCode.SET_GLOBAL;
+            arg = globalSymbol(name);
+            byte op = assign ? setOp : getOp;
+            emitOpShort(op, arg);
+            return;
+        }
+        arg = resolveLocal(current, lexeme);
+        if (arg != -1) {
+            getOp = OpCode.GET_LOCAL;
+            setOp = OpCode.SET_LOCAL;
+        } else {
+            arg = resolveUpvalue(current, name, lexeme);
+            getOp = OpCode.GET_UPVALUE;
+            setOp = OpCode.SET_UPVALUE;
+        }
+        emitOpByte(assign ? setOp : getOp, arg);
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name, String lexeme) {
+        if (state.enclosing == null) return -1;
+        int local = resolveLocal(state.enclosing, lexeme);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, name, local, true);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, name, lexeme);
+        if (upvalue != -1) {
+            return addUpvalue(state, name, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, Token name, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            Lox.error(name, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    // The value for the new local is already on top of the stack.
+    private void addLocal(Token name, String lexeme) {
+        if (current.locals.size() == MAX_LOCALS) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(lexeme, current.scopeDepth));
+    }
+
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            addLocal(name, name.lexeme);
+            return;
+        }
+        emitOpShort(OpCode.DEFINE_GLOBAL, globalSymbol(name));
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emitOp(OpCode.CLOSE_UPVALUE);
+            } else {
+                emitOp(OpCode.POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // Globals are addressed by the name's Symbols id, so the VM indexes an
+    // array where it used to hash the name.
+    private int globalSymbol(Token name) {
+        if (name.symbol > MAX_SYMBOL) {
+            Lox.error(name, "Too many global names.");
+            return 0;
+        }
+        return name.symbol;
+    }
+
+    private int identifierConstant(Token name) {
+        return makeConstant(name.lexeme);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = currentChunk().addConstant(value);
+        if (constant >= MAX_CONSTANTS) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private Chunk currentChunk() {
+        return current.function.chunk;
+    }
+
+    private void emitByte(int b) {
+        currentChunk().write(b, line);
+    }
+
+    private void emitOp(byte op) {
+        emitByte(op);
+        adjustStack(stackEffect(op));
+    }
+
+    private void emitOpByte(byte op, int operand) {
+        emitOp(op);
+        emitByte(operand);
+    }
+
+    private void emitOpShort(byte op, int operand) {
+        emitOp(op);
+        emitByte((operand >> 8) & 0xff);
+        emitByte(operand & 0xff);
+    }
+
+    private int emitJump(byte op) {
+        emitOpShort(op, 0xffff);
+        return currentChunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the jump offset itself.
+        int jump = currentChunk().count - offset - 2;
+        if (jump > MAX_JUMP) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        currentChunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        currentChunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+        int offset = currentChunk().count - loopStart + 2;
+        if (offset > MAX_JUMP) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitByte((offset >> 8) & 0xff);
+        emitByte(offset & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOpByte(OpCode.GET_LOCAL, 0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+    }
+
+    // Tracks the operand stack height so the VM can size each frame up front
+    // instead of bounds-checking every push.
+    private void adjustStack(int delta) {
+        current.stackDepth += delta;
+        if (current.stackDepth > current.function.maxStack) {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+
+    private static int stackEffect(byte op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.TRUE:
+            case OpCode.FALSE:
+            case OpCode.GET_LOCAL:
+            case OpCode.GET_GLOBAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.CLOSURE:
+            case OpCode.CLASS:
+                return 1;
+            case OpCode.POP:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.SET_PROPERTY:
+            case OpCode.GET_SUPER:
+            case OpCode.EQUAL:
+            case OpCode.NOT_EQUAL:
+            case OpCode.GREATER:
+            case OpCode.GREATER_EQUAL:
+            case OpCode.LESS:
+            case OpCode.LESS_EQUAL:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.PRINT:
+            case OpCode.CLOSE_UPVALUE:
+            case OpCode.RETURN:
+            case OpCode.INHERIT:
+            case OpCode.METHOD:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+}
@@ -4,64 +4,133 @@ import java.util.*;
 
 class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Only the global environment looks names up, by symbol id; every local
+    // frame is a fixed-size array whose slots the Resolver numbered.
+    private Object[] values;
+    final Object[] slots;
+    // Numbers the tree-walker stores unboxed: the slot holds UNBOXED and the
+    // value lives here. Allocated on the first such store.
+    private double[] numbers;
+    private int count = 0;
+
+    // Tag for "the number is held as a primitive elsewhere", shared with
+    // the Interpreter's number register. It never escapes to Lox code.
+    static final Object UNBOXED = new Object();
+    // Marks a global id that has no definition in this environment.
+    private static final Object UNDEFINED = new Object();
 
     Environment() {
         enclosing = null;
+        values = new Object[64];
+        Arrays.fill(values, UNDEFINED);
+        slots = null;
     }
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
+        if (Stats.ENABLED) Stats.count(Stats.ENVIRONMENTS);
         this.enclosing = enclosing;
+        this.values = null;
+        this.slots = new Object[size];
     }
 
     void define(Object name, Object value) {
+        if (slots != null) {
+            push(value);
+            return;
+        }
         if (name instanceof String) {
-            values.put((String) name, value);
+            put(Symbols.intern((String) name), value);
         } else if (name instanceof Token) {
             Token token = (Token) name;
             if (token.type == TokenType.IDENTIFIER) {
-                values.put(token.lexeme, value);
+                put(token.symbol, value);
             }
         } else {
             throw new RuntimeError(null, "Invalid name type. Expected String or Token.");
         }
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    private void put(int symbol, Object value) {
+        if (symbol >= values.length) {
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(symbol + 1, length * 2));
+            Arrays.fill(values, length, values.length, UNDEFINED);
         }
-        if (enclosing != null) {
-            return enclosing.get(name);
+        values[symbol] = value;
+    }
+
+    // Every defined global by name, for Snapshot.
+    Map<String, Object> globals() {
+        Map<String, Object> globals = new LinkedHashMap<>();
+        for (int symbol = 0; symbol < values.length; symbol++) {
+            if (values[symbol] != UNDEFINED) {
+                globals.put(Symbols.name(symbol), values[symbol]);
+            }
+        }
+        return globals;
+    }
+
+    // Locals are defined in the same order the Resolver numbered them, so
+    // the next free slot is the one it assigned.
+    void push(Object value) {
+        slots[count++] = value;
+    }
+
+    void defineNumber(double value) {
+        storeNumber(count++, value);
+    }
+
+    Object get(Token name) {
+        if (Stats.ENABLED) Stats.count(Stats.GLOBAL_LOOKUPS);
+        int symbol = name.symbol;
+        if (symbol < values.length && values[symbol] != UNDEFINED) {
+            return values[symbol];
         }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    // Boxes an unboxed number; callers that can take a primitive read the
+    // slot and number() themselves.
+    Object getAt(int distance, int slot) {
+        Environment environment = ancestor(distance);
+        Object value = environment.slots[slot];
+        if (value == UNBOXED) return environment.numbers[slot];
+        return value;
+    }
+
+    double number(int slot) {
+        return numbers[slot];
     }
 
     Environment ancestor(int distance) {
+        if (Stats.ENABLED) Stats.access(distance);
         Environment environment = this;
         for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing; 
+            environment = environment.enclosing;
         }
         return environment;
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        int symbol = name.symbol;
+        if (symbol < values.length && values[symbol] != UNDEFINED) {
+            values[symbol] = value;
             return;
         }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+    void assignNumberAt(int distance, int slot, double value) {
+        ancestor(distance).storeNumber(slot, value);
+    }
+
+    private void storeNumber(int slot, double value) {
+        if (numbers == null) numbers = new double[slots.length];
+        numbers[slot] = value;
+        slots[slot] = UNBOXED;
     }
-}
\ No newline at end of file
+}
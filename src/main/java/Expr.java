@@ -18,9 +18,20 @@ abstract class Expr {
         R visitVariableExpr(Variable expr);
     }
 
+    // Depth recorded by the Resolver for a variable it did not find in any
+    // local scope; those are looked up by name in the globals.
+    static final int GLOBAL = -1;
+
+    // Base for expressions that name a variable. The Resolver stores where
+    // the variable lives directly on the node so evaluation is a field load.
+    abstract static class Resolvable extends Expr {
+        int depth = GLOBAL;
+        int slot;
+    }
+
     // Nested Expr classes here...
     //> expr-assign
-    static class Assign extends Expr {
+    static class Assign extends Resolvable {
         final Token name;
         final Expr value;
 
@@ -76,6 +87,7 @@ abstract class Expr {
     static class Get extends Expr {
         final Expr object;
         final Token name;
+        final InlineCache cache = new InlineCache();
 
         Get(Expr object, Token name) {
             this.object = object;
@@ -144,6 +156,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        final InlineCache cache = new InlineCache();
 
         Set(Expr object, Token name, Expr value) {
             this.object = object;
@@ -158,9 +171,12 @@ abstract class Expr {
     }
     
     //> expr-super
-    static class Super extends Expr {
+    static class Super extends Resolvable {
         final Token keyword;
         final Token method;
+        // Method this node last resolved to, for that superclass.
+        LoxClass superclass;
+        LoxFunction target;
 
         Super(Token keyword, Token method) {
             this.keyword = keyword;
@@ -174,7 +190,7 @@ abstract class Expr {
     }
     
     //> expr-this
-    static class This extends Expr {
+    static class This extends Resolvable {
         final Token keyword;
 
         This(Token keyword) {
@@ -204,7 +220,7 @@ abstract class Expr {
     }
 
     //> expr-variable
-    static class Variable extends Expr {
+    static class Variable extends Resolvable {
         final Token name;
 
         Variable(Token name) {
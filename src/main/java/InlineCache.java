@@ -0,0 +1,45 @@
+// package com.craftinginterpreters.lox;
+
+// Per-node cache for a property access, keyed by receiver shape. One entry
+// is the monomorphic case; it grows to LIMIT entries and then stops
+// learning, leaving a megamorphic site to look fields up by name.
+class InlineCache {
+    static final int LIMIT = 4;
+
+    private Shape[] shapes;
+    // Field index per shape; -1 when that shape has no such field.
+    private int[] indexes;
+    // For a Set that adds a field: the shape after the add. Null when the
+    // field already exists.
+    private Shape[] transitions;
+    private int size = 0;
+
+    // Position of shape's entry, or -1.
+    int find(Shape shape) {
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return i;
+        }
+        return -1;
+    }
+
+    int index(int entry) {
+        return indexes[entry];
+    }
+
+    Shape transition(int entry) {
+        return transitions[entry];
+    }
+
+    void add(Shape shape, int index, Shape transition) {
+        if (size == LIMIT) return;
+        if (shapes == null) {
+            shapes = new Shape[LIMIT];
+            indexes = new int[LIMIT];
+            transitions = new Shape[LIMIT];
+        }
+        shapes[size] = shape;
+        indexes[size] = index;
+        transitions[size] = transition;
+        size++;
+    }
+}
@@ -3,21 +3,42 @@
 import java.util.*;
 
 class Interpreter implements Expr.Visitor<Object>,
-                             Stmt.Visitor<Void> {
+                             Stmt.Visitor<Interpreter.Completion> {
+
+    // How a statement finished. RETURN unwinds to the enclosing call, which
+    // picks the value up from returnValue; nothing is thrown.
+    enum Completion { NORMAL, RETURN }
 
     // private Environment environment = new Environment();
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // Number register: an expression whose value is a number may return
+    // Environment.UNBOXED and leave the value here instead of allocating a
+    // Double. evaluate() boxes it; only numeric-aware callers use evaluateUnboxed().
+    private double number;
+    private Object returnValue;
+    // Set by the `profile` command; calls keep its shadow stack.
+    Profiler profiler;
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
+        defineNative("clock", () -> (double)System.currentTimeMillis() / 1000.0);
+        // Nanoseconds from an arbitrary origin, for timing within a run.
+        defineNative("clockNanos", () -> (double)System.nanoTime());
+    }
+
+    private void defineNative(String name, java.util.function.Supplier<Object> body) {
+        globals.define(name, new LoxCallable() {
             @Override
             public int arity() { return 0; }
 
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
+                return body.get();
             }
 
             @Override
@@ -46,6 +67,14 @@ class Interpreter implements Expr.Visitor<Object>,
         }
     }
 
+    void interpretCompiled(JvmCode script) {
+        try {
+            script.run(this, globals);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -53,7 +82,8 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
-        Object left = evaluate(expr.left);
+        // Operands pass through unboxed; returning left leaves the register intact.
+        Object left = evaluateUnboxed(expr.left);
         if (expr.operator.type == TokenType.OR) {
             if (isTruthy(left)) 
                 return left;
@@ -61,7 +91,7 @@ class Interpreter implements Expr.Visitor<Object>,
             if (!isTruthy(left)) 
                 return left;
         }
-        return evaluate(expr.right);
+        return evaluateUnboxed(expr.right);
     }
 
     @Override
@@ -71,20 +101,14 @@ class Interpreter implements Expr.Visitor<Object>,
             throw new RuntimeError(expr.name, "Only instances have fields.");
         }
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        ((LoxInstance)object).set(expr, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
-        if (method == null) {
-            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
-        }
-        return method.bind(object);
+        // Shared with compiled code, so the two engines look it up alike.
+        return JvmRuntime.superMethod(environment, expr);
     }
 
 
@@ -95,18 +119,25 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
-        return evaluate(expr.expression);
+        return evaluateUnboxed(expr.expression);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        Object right = evaluateUnboxed(expr.right);
+        double operand = number;
+        if (right instanceof Double) {
+            operand = (Double)right;
+            right = Environment.UNBOXED;
+        }
         switch (expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                if (right != Environment.UNBOXED) {
+                    checkNumberOperand(expr.operator, right);
+                }
+                return unboxed(-operand);
         }
         // Unreachable
         return null;
@@ -114,51 +145,120 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
+        // Boxed number operands (literals, globals, fields) join the unboxed
+        // path, so below a number is always UNBOXED plus its double.
+        Object left = evaluateUnboxed(expr.left);
+        double leftNumber = number;
+        if (left instanceof Double) {
+            leftNumber = (Double)left;
+            left = Environment.UNBOXED;
+        }
+        Object right = evaluateUnboxed(expr.right);
+        double rightNumber = number;
+        if (right instanceof Double) {
+            rightNumber = (Double)right;
+            right = Environment.UNBOXED;
+        }
+        return binary(expr, left, leftNumber, right, rightNumber);
+    }
+
+    private Object binary(Expr.Binary expr, Object left, double leftNumber,
+                          Object right, double rightNumber) {
+        if (left == Environment.UNBOXED && right == Environment.UNBOXED) {
+            switch (expr.operator.type) {
+                case BANG_EQUAL: return !sameNumber(leftNumber, rightNumber);
+                case EQUAL_EQUAL: return sameNumber(leftNumber, rightNumber);
+                case GREATER: return leftNumber > rightNumber;
+                case GREATER_EQUAL: return leftNumber >= rightNumber;
+                case LESS: return leftNumber < rightNumber;
+                case LESS_EQUAL: return leftNumber <= rightNumber;
+                case MINUS: return unboxed(leftNumber - rightNumber);
+                case PLUS: return unboxed(leftNumber + rightNumber);
+                case SLASH: return unboxed(leftNumber / rightNumber);
+                case STAR: return unboxed(leftNumber * rightNumber);
+            }
+        }
+        // At most one side is a number; box it and take the checked path.
+        if (left == Environment.UNBOXED) left = leftNumber;
+        if (right == Environment.UNBOXED) right = rightNumber;
         switch (expr.operator.type) {
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left > (double)right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left >= (double)right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left < (double)right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left <= (double)right;
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
                 if (left instanceof String && right instanceof String) {
                     return (String)left + (String)right;
                 }
                 throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
-            case STAR:
+            default:
                 checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
         }
         // Unreachable.
         return null;
     }
 
+    // Double.equals semantics (NaN equals itself, 0 and -0 differ) without the boxes.
+    private static boolean sameNumber(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    private Object unboxed(double value) {
+        number = value;
+        return Environment.UNBOXED;
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        if (Stats.ENABLED) Stats.call(expr.arguments.size());
+        Object callee;
+        // For obj.method(...) the method is invoked with obj as its receiver
+        // directly, rather than through a bound copy made only for this call.
+        LoxInstance receiver = null;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(get.name, "Only instances have properties.");
+            }
+            LoxInstance instance = (LoxInstance)object;
+            LoxFunction method = instance.method(get);
+            if (method != null) {
+                receiver = instance;
+                callee = method;
+            } else {
+                callee = instance.get(get);
+            }
+        } else {
+            callee = evaluate(expr.callee);
+        }
+        // Lox functions, methods and initializers with matching arity get
+        // their arguments evaluated straight into the new frame, numbers
+        // left unboxed. Anything else goes through the argument list.
+        LoxFunction function = null;
+        LoxInstance self = receiver;
+        if (callee instanceof LoxFunction) {
+            function = (LoxFunction)callee;
+            if (self == null) self = function.receiver;
+        } else if (callee instanceof LoxClass && ((LoxClass)callee).initializer != null) {
+            function = ((LoxClass)callee).initializer;
+        }
+        if (function != null && function.arity() == expr.arguments.size()) {
+            // Only now, so a call with the wrong arity builds no instance.
+            if (callee instanceof LoxClass) self = new LoxInstance((LoxClass)callee);
+            Environment frame = function.frame(self);
+            for (Expr argument : expr.arguments) {
+                Object value = evaluateUnboxed(argument);
+                if (value == Environment.UNBOXED) {
+                    frame.defineNumber(number);
+                } else {
+                    frame.push(value);
+                }
+            }
+            if (profiler != null) profiler.callSite = expr.paren.line;
+            Object value = function.run(this, self, frame);
+            return callee instanceof LoxClass ? self : value;
+        }
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) { 
             arguments.add(evaluate(argument));
@@ -166,89 +266,109 @@ class Interpreter implements Expr.Visitor<Object>,
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren, "Can only call functions and classes.");
         } 
-        LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
+        LoxCallable callable = (LoxCallable)callee;
+        if (arguments.size() != callable.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
-                function.arity() + " arguments but got " +
+                callable.arity() + " arguments but got " +
                 arguments.size() + ".");
         }
-        return function.call(this, arguments);
+        if (profiler != null) profiler.callSite = expr.paren.line;
+        if (arguments.isEmpty()) {
+            return callable.call0(this);
+        }
+        return callable.call(this, arguments);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return ((LoxInstance) object).get(expr);
         }
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
-        return null;
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
+        evaluateUnboxed(stmt.expression);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
         LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        environment.define(stmt.name, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (isTruthy(evaluateUnboxed(stmt.condition))) {
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) 
             value = evaluate(stmt.value);
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+            value = evaluateUnboxed(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        if (value == Environment.UNBOXED) {
+            if (environment != globals) {
+                environment.defineNumber(number);
+                return Completion.NORMAL;
+            }
+            value = number;
+        }
+        environment.define(stmt.name, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (isTruthy(evaluateUnboxed(stmt.condition))) {
+            if (execute(stmt.body) == Completion.RETURN) {
+                return Completion.RETURN;
+            }
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        } else {
-            globals.assign(expr.name, value);
+        Object value = evaluateUnboxed(expr.value);
+        if (expr.depth != Expr.GLOBAL) {
+            if (value == Environment.UNBOXED) {
+                environment.assignNumberAt(expr.depth, expr.slot, number);
+            } else {
+                environment.assignAt(expr.depth, expr.slot, value);
+            }
+            return value;
+        }
+        if (value == Environment.UNBOXED) {
+            value = number;
         }
+        globals.assign(expr.name, value);
         return value;
     }
 
@@ -257,35 +377,40 @@ class Interpreter implements Expr.Visitor<Object>,
         return lookUpVariable(expr.name, expr);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, Expr.Resolvable expr) {
+        if (expr.depth != Expr.GLOBAL) {
+            Environment frame = environment.ancestor(expr.depth);
+            Object value = frame.slots[expr.slot];
+            if (value == Environment.UNBOXED) {
+                number = frame.number(expr.slot);
+            }
+            return value;
         } else {
             return globals.get(name);
         }
     }
 
     private Object evaluate(Expr expr) {
-        return expr.accept(this);
+        Object value = expr.accept(this);
+        if (value == Environment.UNBOXED) return number;
+        return value;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Object evaluateUnboxed(Expr expr) {
+        return expr.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements, new Environment(environment, stmt.frameSize));
     }
     
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -293,9 +418,8 @@ class Interpreter implements Expr.Visitor<Object>,
                 throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
             }
         }
-        environment.define(stmt.name.lexeme, null);
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
+            environment = new Environment(environment, 1);
             environment.define("super", superclass);
         }
         Map<String, LoxFunction> methods = new HashMap<>();
@@ -307,11 +431,19 @@ class Interpreter implements Expr.Visitor<Object>,
         if (superclass != null) {
             environment = environment.enclosing;
         }
-        environment.assign(stmt.name, klass);
-        return null;
+        // Defined only now so a local class still lands in the slot the
+        // Resolver gave it; methods see the name through their closure.
+        environment.define(stmt.name, klass);
+        return Completion.NORMAL;
     }
 
-    private String stringify(Object object) {
+    // Value of the return statement that completed the last call; read once
+    // by LoxFunction right after the body finishes with RETURN.
+    Object returnValue() {
+        return returnValue;
+    }
+
+    static String stringify(Object object) {
         if (object == null)
             return "nil";
 
@@ -335,7 +467,7 @@ class Interpreter implements Expr.Visitor<Object>,
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) 
             return true;
 
@@ -346,13 +478,16 @@ class Interpreter implements Expr.Visitor<Object>,
     }
 
     // Ensure executeBlock correctly sets and restores the environment
-    void executeBlock(List<Stmt> statements, Environment blockEnvironment) { // Renamed param for clarity
+    Completion executeBlock(List<Stmt> statements, Environment blockEnvironment) { // Renamed param for clarity
         Environment previous = this.environment;
         try {
             this.environment = blockEnvironment; // Switch to the new environment for the block/function
             for (Stmt statement : statements) {
-                execute(statement);
+                if (execute(statement) == Completion.RETURN) {
+                    return Completion.RETURN;
+                }
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous; // Restore the previous environment
         }
@@ -0,0 +1,7 @@
+// package com.craftinginterpreters.lox;
+
+// A function body, or the top-level script, compiled to JVM bytecode by
+// JvmCompiler. The environment passed in already holds the parameters.
+interface JvmCode {
+    Object run(Interpreter interpreter, Environment environment);
+}
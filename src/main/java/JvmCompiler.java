@@ -0,0 +1,436 @@
+// package com.craftinginterpreters.lox;
+
+import java.lang.invoke.*;
+import java.util.*;
+
+// Compiles each function body, and the top-level script, to a JVM method on
+// its own hidden class so HotSpot can JIT Lox code directly. The generated
+// code keeps the tree-walker's runtime model: locals live in the same slot
+// frames, functions are LoxFunctions and classes are LoxClasses, so compiled
+// and interpreted code can call each other freely. Everything dynamically
+// typed goes through small static helpers in JvmRuntime.
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_ARRAY = "[Ljava/lang/Object;";
+    private static final String ENVIRONMENT = "Environment";
+    private static final String RUNTIME = "JvmRuntime";
+    private static final String RUN = "(LInterpreter;LEnvironment;)Ljava/lang/Object;";
+    private static final String BINARY = "(Ljava/lang/Object;Ljava/lang/Object;LToken;)Ljava/lang/Object;";
+    private static final String DEFINE = "(Ljava/lang/Object;Ljava/lang/Object;)V";
+
+    // JVM locals of the generated run method.
+    private static final int THIS = 0;
+    private static final int INTERPRETER = 1;
+    private static final int FRAME = 2;
+
+    private String className;
+    private ClassFileWriter.Code code;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    // JVM local holding the innermost Environment, and the next free local.
+    private int environment = FRAME;
+    private int nextLocal = FRAME + 1;
+
+    // Compiles the script and every function declared in it. Returns null
+    // when the script itself is too large for one JVM method; functions that
+    // compiled are still used when the tree-walker runs it instead.
+    JvmCode compile(List<Stmt> statements) {
+        return compileBody("script", statements);
+    }
+
+    private static void compileFunction(Stmt.Function function) {
+        function.compiled = new JvmCompiler().compileBody(function.name.lexeme, function.body);
+    }
+
+    private JvmCode compileBody(String name, List<Stmt> body) {
+        className = "Lox$" + name;
+        ClassFileWriter writer = new ClassFileWriter();
+        try {
+            writer.addField(ClassFileWriter.ACC_PRIVATE | ClassFileWriter.ACC_FINAL, "k", OBJECT_ARRAY);
+
+            ClassFileWriter.Code init = writer.method(ClassFileWriter.ACC_PUBLIC, "<init>", "(" + OBJECT_ARRAY + ")V", 2);
+            init.aload(0);
+            init.invokespecial(OBJECT, "<init>", "()V");
+            init.aload(0);
+            init.aload(1);
+            init.putfield(className, "k", OBJECT_ARRAY);
+            init.vreturn();
+            init.end();
+
+            code = writer.method(ClassFileWriter.ACC_PUBLIC, "run", RUN, 3);
+            for (Stmt statement : body) {
+                compile(statement);
+            }
+            code.aconstNull();
+            code.areturn();
+            code.end();
+        } catch (ClassFileWriter.TooLargeException error) {
+            return null;
+        }
+
+        byte[] bytes = writer.toByteArray(ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER,
+            className, OBJECT, "JvmCode");
+        try {
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(bytes, true);
+            MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+                MethodType.methodType(void.class, Object[].class));
+            return (JvmCode) constructor.invoke(constants.toArray());
+        } catch (Throwable error) {
+            throw new IllegalStateException("Could not load compiled code for " + name, error);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        int enclosing = environment;
+        int local = nextLocal++;
+        code.anew(ENVIRONMENT);
+        code.dup();
+        code.aload(enclosing);
+        code.iconst(stmt.frameSize);
+        code.invokespecial(ENVIRONMENT, "<init>", "(LEnvironment;I)V");
+        code.astore(local);
+        environment = local;
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        environment = enclosing;
+        nextLocal--;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            compileFunction(method);
+        }
+        code.aload(environment);
+        constant(stmt.name.lexeme, null);
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+        } else {
+            code.aconstNull();
+        }
+        code.aload(environment);
+        constant(stmt, "Stmt$Class");
+        code.invokestatic(RUNTIME, "makeClass",
+            "(Ljava/lang/Object;LEnvironment;LStmt$Class;)LLoxClass;");
+        code.invokevirtual(ENVIRONMENT, "define", DEFINE);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        compileFunction(stmt);
+        code.aload(environment);
+        constant(stmt.name.lexeme, null);
+        code.anew("LoxFunction");
+        code.dup();
+        constant(stmt, "Stmt$Function");
+        code.aload(environment);
+        code.iconst(0);
+        code.invokespecial("LoxFunction", "<init>", "(LStmt$Function;LEnvironment;Z)V");
+        code.invokevirtual(ENVIRONMENT, "define", DEFINE);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassFileWriter.Label elseBranch = code.label();
+        ClassFileWriter.Label end = code.label();
+        compile(stmt.condition);
+        truthy();
+        code.ifeq(elseBranch);
+        compile(stmt.thenBranch);
+        code.jump(end);
+        code.mark(elseBranch);
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        code.invokestatic(RUNTIME, "print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.aconstNull();
+        }
+        code.areturn();
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        code.aload(environment);
+        constant(stmt.name.lexeme, null);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.aconstNull();
+        }
+        code.invokevirtual(ENVIRONMENT, "define", DEFINE);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        ClassFileWriter.Label start = code.label();
+        ClassFileWriter.Label end = code.label();
+        code.mark(start);
+        compile(stmt.condition);
+        truthy();
+        code.ifeq(end);
+        compile(stmt.body);
+        code.jump(start);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth == Expr.GLOBAL) {
+            compile(expr.value);
+            code.dup();
+            globals();
+            code.swap();
+            constant(expr.name, "Token");
+            code.swap();
+            code.invokevirtual(ENVIRONMENT, "assign", "(LToken;Ljava/lang/Object;)V");
+            return null;
+        }
+        // The frame's slot array is fixed, so loading it before evaluating
+        // the value has no observable effect.
+        frameSlots(expr.depth);
+        code.iconst(expr.slot);
+        compile(expr.value);
+        code.dupX2();
+        code.aastore();
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        String helper;
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL:
+                code.invokestatic(RUNTIME, "equal", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+                return null;
+            case BANG_EQUAL:
+                code.invokestatic(RUNTIME, "notEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+                return null;
+            case GREATER:       helper = "greater"; break;
+            case GREATER_EQUAL: helper = "greaterEqual"; break;
+            case LESS:          helper = "less"; break;
+            case LESS_EQUAL:    helper = "lessEqual"; break;
+            case MINUS:         helper = "subtract"; break;
+            case PLUS:          helper = "add"; break;
+            case SLASH:         helper = "divide"; break;
+            case STAR:          helper = "multiply"; break;
+            default:
+                throw new IllegalStateException("Unexpected binary operator " + expr.operator.type);
+        }
+        constant(expr.operator, "Token");
+        code.invokestatic(RUNTIME, helper, BINARY);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        int count = expr.arguments.size();
+        if (count <= 3) {
+            // call0..call3 take the arguments on the stack, no list.
+            for (Expr argument : expr.arguments) {
+                compile(argument);
+            }
+            constant(expr.paren, "Token");
+            code.aload(INTERPRETER);
+            code.invokestatic(RUNTIME, "call" + count,
+                "(" + "Ljava/lang/Object;".repeat(count + 1) + "LToken;LInterpreter;)Ljava/lang/Object;");
+            return null;
+        }
+        code.anew("java/util/ArrayList");
+        code.dup();
+        code.iconst(expr.arguments.size());
+        code.invokespecial("java/util/ArrayList", "<init>", "(I)V");
+        for (Expr argument : expr.arguments) {
+            code.dup();
+            compile(argument);
+            code.invokevirtual("java/util/ArrayList", "add", "(Ljava/lang/Object;)Z");
+            code.pop();
+        }
+        constant(expr.paren, "Token");
+        code.aload(INTERPRETER);
+        code.invokestatic(RUNTIME, "call",
+            "(Ljava/lang/Object;Ljava/util/List;LToken;LInterpreter;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        constant(expr, "Expr$Get");
+        code.invokestatic(RUNTIME, "getProperty", "(Ljava/lang/Object;LExpr$Get;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.aconstNull();
+        } else if (expr.value instanceof Boolean) {
+            code.getstatic("java/lang/Boolean", (Boolean) expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else {
+            constant(expr.value, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        ClassFileWriter.Label end = code.label();
+        compile(expr.left);
+        code.dup();
+        truthy();
+        if (expr.operator.type == TokenType.OR) {
+            code.ifne(end);
+        } else {
+            code.ifeq(end);
+        }
+        code.pop();
+        compile(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        constant(expr.name, "Token");
+        code.invokestatic(RUNTIME, "instanceForSet", "(Ljava/lang/Object;LToken;)LLoxInstance;");
+        compile(expr.value);
+        code.dupX1();
+        constant(expr, "Expr$Set");
+        code.swap();
+        code.invokevirtual("LoxInstance", "set", "(LExpr$Set;Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        code.aload(environment);
+        constant(expr, "Expr$Super");
+        code.invokestatic(RUNTIME, "superMethod", "(LEnvironment;LExpr$Super;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        lookUpVariable(expr.keyword, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        if (expr.operator.type == TokenType.BANG) {
+            code.invokestatic(RUNTIME, "not", "(Ljava/lang/Object;)Ljava/lang/Object;");
+        } else {
+            constant(expr.operator, "Token");
+            code.invokestatic(RUNTIME, "negate", "(Ljava/lang/Object;LToken;)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        lookUpVariable(expr.name, expr);
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void lookUpVariable(Token name, Expr.Resolvable expr) {
+        if (expr.depth == Expr.GLOBAL) {
+            globals();
+            constant(name, "Token");
+            code.invokevirtual(ENVIRONMENT, "get", "(LToken;)Ljava/lang/Object;");
+            return;
+        }
+        // Read through getAt: a frame the tree-walker filled may hold the
+        // number in its unboxed side array rather than in the slot itself.
+        code.aload(environment);
+        code.iconst(expr.depth);
+        code.iconst(expr.slot);
+        code.invokevirtual(ENVIRONMENT, "getAt", "(II)Ljava/lang/Object;");
+    }
+
+    // Pushes the slot array of the frame `depth` hops out from the current one.
+    private void frameSlots(int depth) {
+        code.aload(environment);
+        for (int i = 0; i < depth; i++) {
+            code.getfield(ENVIRONMENT, "enclosing", "LEnvironment;");
+        }
+        code.getfield(ENVIRONMENT, "slots", OBJECT_ARRAY);
+    }
+
+    private void globals() {
+        code.aload(INTERPRETER);
+        code.getfield("Interpreter", "globals", "LEnvironment;");
+    }
+
+    private void truthy() {
+        code.invokestatic(RUNTIME, "isTruthy", "(Ljava/lang/Object;)Z");
+    }
+
+    // Values with no class-file constant form (tokens, AST nodes, boxed
+    // numbers) live in the hidden class's constant array.
+    private void constant(Object value, String type) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+        code.aload(THIS);
+        code.getfield(className, "k", OBJECT_ARRAY);
+        code.iconst(index);
+        code.aaload();
+        if (type != null) {
+            code.checkcast(type);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+// package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+// Static helpers called from JvmCompiler's generated code. Each one mirrors
+// the matching Interpreter visit method, with the same checks and messages,
+// and is small enough for the JIT to inline into the compiled Lox method.
+final class JvmRuntime {
+    private JvmRuntime() {}
+
+    static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    static Object not(Object right) {
+        return !isTruthy(right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+        return -(double) right;
+    }
+
+    static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left - (double) right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left * (double) right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double) left / (double) right;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static Object call(Object callee, List<Object> arguments, Token paren, Interpreter interpreter) {
+        return callable(callee, arguments.size(), paren, interpreter).call(interpreter, arguments);
+    }
+
+    static Object call0(Object callee, Token paren, Interpreter interpreter) {
+        return callable(callee, 0, paren, interpreter).call0(interpreter);
+    }
+
+    static Object call1(Object callee, Object a, Token paren, Interpreter interpreter) {
+        return callable(callee, 1, paren, interpreter).call1(interpreter, a);
+    }
+
+    static Object call2(Object callee, Object a, Object b, Token paren, Interpreter interpreter) {
+        return callable(callee, 2, paren, interpreter).call2(interpreter, a, b);
+    }
+
+    static Object call3(Object callee, Object a, Object b, Object c, Token paren, Interpreter interpreter) {
+        return callable(callee, 3, paren, interpreter).call3(interpreter, a, b, c);
+    }
+
+    private static LoxCallable callable(Object callee, int count, Token paren, Interpreter interpreter) {
+        if (Stats.ENABLED) Stats.call(count);
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+        LoxCallable function = (LoxCallable) callee;
+        if (count != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                function.arity() + " arguments but got " +
+                count + ".");
+        }
+        if (interpreter.profiler != null) interpreter.profiler.callSite = paren.line;
+        return function;
+    }
+
+    static Object getProperty(Object object, Expr.Get expr) {
+        if (object instanceof LoxInstance) {
+            return ((LoxInstance) object).get(expr);
+        }
+        throw new RuntimeError(expr.name, "Only instances have properties.");
+    }
+
+    // Checked before the assigned value is evaluated, as the tree-walker does.
+    static LoxInstance instanceForSet(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return (LoxInstance) object;
+    }
+
+    // The method's frame, with "this" in slot 0, sits directly inside the
+    // one binding "super".
+    static Object superMethod(Environment environment, Expr.Super expr) {
+        // Counted as one access of `depth` hops, the last of them to the
+        // frame binding "super"; both slots hold objects, never UNBOXED.
+        Environment thisFrame = environment.ancestor(expr.depth - 1);
+        if (Stats.ENABLED) Stats.count(Stats.HOPS);
+        LoxClass superclass = (LoxClass) thisFrame.enclosing.slots[0];
+        LoxInstance object = (LoxInstance) thisFrame.slots[0];
+        return superclass.superMethod(expr).bind(object);
+    }
+
+    static LoxClass makeClass(Object superclass, Environment environment, Stmt.Class stmt) {
+        if (stmt.superclass != null && !(superclass instanceof LoxClass)) {
+            throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+        }
+        Environment methodEnvironment = environment;
+        if (stmt.superclass != null) {
+            methodEnvironment = new Environment(environment, 1);
+            methodEnvironment.define("super", superclass);
+        }
+        Map<String, LoxFunction> methods = new HashMap<>();
+        for (Stmt.Function method : stmt.methods) {
+            LoxFunction function = new LoxFunction(method, methodEnvironment, method.name.lexeme.equals("init"));
+            methods.put(method.name.lexeme, function);
+        }
+        return new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+}
@@ -2,6 +2,8 @@
 
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
 
 public class Lox {
@@ -10,32 +12,32 @@ public class Lox {
     static boolean hadRuntimeError = false;
 
 
-    protected static List<Token> runLoxScanner(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        return tokens;
+    // Maps the file rather than decoding it into a String; the scanner reads
+    // the bytes in place. A mapping outlives its channel.
+    static ByteBuffer readSource(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
     }
 
-    protected static Expr runLoxParser(String source) {
-        List<Token> tokens = runLoxScanner(source);
-        Parser parser = new Parser(tokens);
+    protected static Expr runLoxParser(ByteBuffer source) {
+        Parser parser = new Parser(new Scanner(source));
         Expr expression = parser.parseExpression();
         return expression;
     }
 
-    protected static void runResolver(List<Stmt> statements, Interpreter interpreter) {
-        Resolver resolver = new Resolver(interpreter);
+    protected static void runResolver(List<Stmt> statements) {
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
     }
 
-    protected static Expr runLoxInterpreter(String source) {
+    protected static Expr runLoxInterpreter(ByteBuffer source) {
         Expr expression = runLoxParser(source);
         return expression;
     }
 
-    protected static List<Stmt> runLox(String source) {
-        List<Token> tokens = runLoxScanner(source);
-        Parser parser = new Parser(tokens);
+    protected static List<Stmt> runLox(ByteBuffer source) {
+        Parser parser = new Parser(new Scanner(source));
         List<Stmt> statements = parser.parseStatements();
         return statements;
     }
@@ -45,8 +47,18 @@ public class Lox {
         report(line, "", message);
     }
 
+    // Set on batch worker threads so each file's errors are collected for
+    // it rather than printed and flagged for the whole process.
+    static final ThreadLocal<List<String>> diagnostics = new ThreadLocal<>();
+
     private static void report(int line, String where,String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
+        String text = "[line " + line + "] Error" + where + ": " + message;
+        List<String> sink = diagnostics.get();
+        if (sink != null) {
+            sink.add(text);
+            return;
+        }
+        System.err.println(text);
         hadError = true;
     }
 
@@ -62,7 +74,7 @@ public class Lox {
     // Evaluating Expressions runtime-error-method
     static void runtimeError(RuntimeError error) {
         System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
+            "\n[line " + error.line + "]");
         hadRuntimeError = true;
     }
 }
\ No newline at end of file
@@ -1,35 +1,61 @@
 // package com.craftinginterpreters.lox;
 
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
-    private final LoxClass superclass;
-    private final Map<String, LoxFunction> methods;
+    final LoxClass superclass;
+    // Flattened at declaration: inherited methods are copied down and then
+    // overridden, so lookup never walks the superclass chain. Keyed by the
+    // canonical Symbols names, so a lookup is an identity compare.
+    final Map<String, LoxFunction> methods;
+    final LoxFunction initializer;
+    private static final String INIT = Symbols.canonical("init");
+    // Instances made since the last LoxEvents.InstanceAllocation sample.
+    int unsampled;
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
+        Map<String, LoxFunction> table = new IdentityHashMap<>();
+        if (superclass != null) {
+            table.putAll(superclass.methods);
+        }
+        for (Map.Entry<String, LoxFunction> method : methods.entrySet()) {
+            table.put(Symbols.canonical(method.getKey()), method.getValue());
+        }
+        this.methods = table;
+        this.initializer = table.get(INIT);
     }
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) 
+        if (initializer == null)
             return 0;
         return initializer.arity();
     }
 
+    // Identifier lexemes are already canonical.
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
+        return methods.get(name);
+    }
+
+    // Target of `super.method` in a subclass of this class. The node keeps
+    // the answer, keyed by superclass since a class declaration inside a
+    // function can run again with a different one.
+    LoxFunction superMethod(Expr.Super expr) {
+        if (expr.superclass == this) {
+            return expr.target;
         }
-        if (superclass != null) {
-            return superclass.findMethod(name);
+        LoxFunction method = methods.get(expr.method.lexeme);
+        if (method == null) {
+            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
         }
-        return null;
+        expr.superclass = this;
+        expr.target = method;
+        return method;
     }
 
     @Override
@@ -40,10 +66,45 @@ class LoxClass implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.run(interpreter, instance, initializer.frame(instance));
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke1(interpreter, instance, a);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke2(interpreter, instance, a, b);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.invoke3(interpreter, instance, a, b, c);
         }
         return instance;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,101 @@
+// package com.craftinginterpreters.lox;
+
+import jdk.jfr.*;
+
+// Flight Recorder events, under the "Lox" category next to the JVM's own
+// GC and JIT events. Loading an event class brings up JFR's machinery,
+// a few hundred milliseconds, so none is touched unless Flight Recorder is
+// already running: `recording` is false until then, and the hooks on
+// calls and instance creation test it before doing anything else, at the
+// cost of a field read. JFR's own empty stubs would not do on the call
+// path, which is too large and recursive for escape analysis to remove
+// the event object.
+//
+// Whether JFR is up is checked at each phase boundary; from the first
+// time it is, a listener keeps `recording` in step with its recordings, so
+// one started later by jcmd is seen from the next phase on. Fields are set
+// only once shouldCommit() says the event will be kept.
+class LoxEvents {
+    static volatile boolean recording;
+    private static boolean listening;
+
+    // A phase event begun now, or null if nothing can record it.
+    static Phase phase(String name) {
+        listen();
+        if (!recording) return null;
+        Phase event = new Phase();
+        event.phase = name;
+        event.begin();
+        return event;
+    }
+
+    static void end(Phase phase) {
+        if (phase != null) phase.commit();
+    }
+
+    private static synchronized void listen() {
+        if (listening || !FlightRecorder.isInitialized()) return;
+        listening = true;
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording changed) {
+                update();
+            }
+        });
+        update();
+    }
+
+    private static void update() {
+        boolean running = false;
+        for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+            running |= recording.getState() == RecordingState.RUNNING;
+        }
+        recording = running;
+    }
+
+    // Scanning happens on demand while parsing, so a run's "parse" phase
+    // includes it; only `tokenize` has a separate "scan".
+    @Name("lox.Phase")
+    @Label("Lox Phase")
+    @Category("Lox")
+    @Description("A stage of the pipeline: scan, parse, optimize, resolve or execute")
+    @StackTrace(false)
+    static class Phase extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    // Calls quicker than the threshold are dropped when they return; a
+    // recording's settings may lower it.
+    @Name("lox.Call")
+    @Label("Lox Call")
+    @Category("Lox")
+    @Description("A call of a Lox function or method")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class Call extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        @Description("Line the function is declared on")
+        int line;
+    }
+
+    // Every SAMPLE-th instance of each class is recorded, standing for
+    // itself and those before it since the last.
+    @Name("lox.InstanceAllocation")
+    @Label("Lox Instance Allocation")
+    @Category("Lox")
+    @Description("A sample of the instances created of a Lox class")
+    static class InstanceAllocation extends Event {
+        static final int SAMPLE = 256;
+
+        @Label("Class")
+        String className;
+
+        @Label("Instances")
+        @Description("Instances of the class this sample stands for")
+        int weight;
+    }
+}
@@ -3,14 +3,22 @@
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    private final boolean isInitializer;
+    final Stmt.Function declaration;
+    final Environment closure;
+    final boolean isInitializer;
+    // Set on bound methods; unbound ones get theirs passed to invoke().
+    final LoxInstance receiver;
 
     LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+        this(declaration, closure, isInitializer, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+                        LoxInstance receiver) {
         this.declaration = declaration;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     @Override
@@ -20,28 +28,120 @@ class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(interpreter, receiver, frame(receiver));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        return invoke1(interpreter, receiver, a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        return invoke2(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return invoke3(interpreter, receiver, a, b, c);
+    }
+
+    // Runs the body with `receiver` as "this" (null for plain functions),
+    // which a method's frame keeps in slot 0.
+    Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+        Environment environment = frame(receiver);
+        for (Object argument : arguments) {
+            environment.push(argument);
         }
+        return run(interpreter, receiver, environment);
+    }
+
+    Object invoke1(Interpreter interpreter, LoxInstance receiver, Object a) {
+        Environment environment = frame(receiver);
+        environment.push(a);
+        return run(interpreter, receiver, environment);
+    }
+
+    Object invoke2(Interpreter interpreter, LoxInstance receiver, Object a, Object b) {
+        Environment environment = frame(receiver);
+        environment.push(a);
+        environment.push(b);
+        return run(interpreter, receiver, environment);
+    }
+
+    Object invoke3(Interpreter interpreter, LoxInstance receiver, Object a, Object b, Object c) {
+        Environment environment = frame(receiver);
+        environment.push(a);
+        environment.push(b);
+        environment.push(c);
+        return run(interpreter, receiver, environment);
+    }
+
+    // A call's frame with "this" already in place; the caller pushes the
+    // arguments straight into the following slots and hands it to run().
+    Environment frame(LoxInstance receiver) {
+        Environment environment = new Environment(closure, declaration.frameSize);
+        if (receiver != null) {
+            environment.push(receiver);
+        }
+        return environment;
+    }
+
+    Object run(Interpreter interpreter, LoxInstance receiver, Environment environment) {
+        if (LoxEvents.recording) return record(interpreter, receiver, environment);
+        return profile(interpreter, receiver, environment);
+    }
+
+    private Object record(Interpreter interpreter, LoxInstance receiver, Environment environment) {
+        LoxEvents.Call event = new LoxEvents.Call();
+        event.begin();
+        Object value = profile(interpreter, receiver, environment);
+        event.end();
+        if (event.shouldCommit()) {
+            event.function = declaration.name.lexeme;
+            event.line = declaration.name.line;
+            event.commit();
+        }
+        return value;
+    }
+
+    private Object profile(Interpreter interpreter, LoxInstance receiver, Environment environment) {
+        Profiler profiler = interpreter.profiler;
+        if (profiler == null) return execute(interpreter, receiver, environment);
+        profiler.enter(declaration.name.lexeme);
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+            return execute(interpreter, receiver, environment);
+        } finally {
+            profiler.exit();
+        }
+    }
+
+    private Object execute(Interpreter interpreter, LoxInstance receiver, Environment environment) {
+        if (declaration.compiled != null) {
+            Object value = declaration.compiled.run(interpreter, environment);
+            if (isInitializer) return receiver;
+            return value;
         }
-        if (isInitializer) return closure.getAt(0, "this");
+        Interpreter.Completion completion = interpreter.executeBlock(declaration.body, environment);
+        if (isInitializer) return receiver;
+        if (completion == Interpreter.Completion.RETURN) return interpreter.returnValue();
         return null;
     }
 
+    // Only for a method value that escapes; calls through a property go
+    // straight to invoke() with the instance.
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        if (Stats.ENABLED) Stats.count(Stats.BINDS);
+        return new LoxFunction(declaration, closure, isInitializer, instance);
     }
 
     @Override
     public String toString() {
         return "<fn " + declaration.name.lexeme + ">";
     }
-}
\ No newline at end of file
+}
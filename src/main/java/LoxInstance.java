@@ -1,32 +1,113 @@
 // package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final LoxClass klass;
+    // Field names live in the shared shape; the instance only holds values.
+    private Shape shape = Shape.ROOT;
+    private Object[] values = NO_FIELDS;
 
     LoxInstance(LoxClass klass) {
+        if (Stats.ENABLED) Stats.count(Stats.INSTANCES);
         this.klass = klass;
+        if (LoxEvents.recording && ++klass.unsampled == LoxEvents.InstanceAllocation.SAMPLE) {
+            klass.unsampled = 0;
+            LoxEvents.InstanceAllocation event = new LoxEvents.InstanceAllocation();
+            event.className = klass.name;
+            event.weight = LoxEvents.InstanceAllocation.SAMPLE;
+            event.commit();
+        }
+    }
+
+    // Property read through the node's inline cache.
+    Object get(Expr.Get expr) {
+        int index = fieldIndex(expr);
+        if (index >= 0) {
+            return values[index];
+        }
+        return findMethod(expr.name).bind(this);
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    // The method a call through expr should invoke on this instance, or
+    // null when a field shadows it.
+    LoxFunction method(Expr.Get expr) {
+        if (fieldIndex(expr) >= 0) return null;
+        return findMethod(expr.name);
+    }
+
+    private int fieldIndex(Expr.Get expr) {
+        int entry = expr.cache.find(shape);
+        if (entry >= 0) {
+            return expr.cache.index(entry);
         }
+        // Misses are cached too, so method access skips the shape walk.
+        int index = shape.indexOf(expr.name.symbol);
+        expr.cache.add(shape, index, null);
+        return index;
+    }
+
+    // Where every field miss ends up, once per property access.
+    private LoxFunction findMethod(Token name) {
+        if (Stats.ENABLED) Stats.count(Stats.FIELD_MISSES);
         LoxFunction method = klass.findMethod(name.lexeme);
-        if (method != null) 
-            return method.bind(this);
+        if (method != null) return method;
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    // Property write through the node's inline cache; an entry either
+    // overwrites an existing field or replays the shape transition.
+    void set(Expr.Set expr, Object value) {
+        int entry = expr.cache.find(shape);
+        if (entry >= 0) {
+            Shape transition = expr.cache.transition(entry);
+            if (transition == null) {
+                values[expr.cache.index(entry)] = value;
+            } else {
+                append(transition, value);
+            }
+            return;
+        }
+        int index = shape.indexOf(expr.name.symbol);
+        if (index >= 0) {
+            expr.cache.add(shape, index, null);
+            values[index] = value;
+        } else {
+            Shape next = shape.with(expr.name.symbol);
+            expr.cache.add(shape, next.index, next);
+            append(next, value);
+        }
+    }
+
+    private void append(Shape next, Object value) {
+        if (next.index >= values.length) {
+            Object[] grown = new Object[Math.max(4, values.length * 2)];
+            System.arraycopy(values, 0, grown, 0, values.length);
+            values = grown;
+        }
+        values[next.index] = value;
+        shape = next;
+    }
+
+    // Fields in the order they were added, which put() replays to rebuild
+    // the same shape; used by Snapshot.
+    Map<String, Object> fields() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < shape.size(); i++) {
+            fields.put(Symbols.name(shape.symbolAt(i)), values[i]);
+        }
+        return fields;
+    }
+
+    void put(String name, Object value) {
+        append(shape.with(Symbols.intern(name)), value);
     }
 
     @Override
     public String toString() {
         return klass.name + " instance";
     }
-}
\ No newline at end of file
+}
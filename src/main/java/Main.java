@@ -1,21 +1,92 @@
 // package com.craftinginterpreters.lox;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.*;
 
 public class Main {
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.err.println("Usage: ./your_program.sh <command> <filename>");
+            System.err.println("Usage: ./your_program.sh <command> [--engine=tree|vm|jvm] [--batch] [--cache=<dir>] [--snapshot=<file>] [--save-snapshot=<file>] [--warmup=<n>] [--iterations=<n>] [--folded=<file>] [--stats] <filename>");
             System.exit(1);
         }
 
         String command = args[0];
-        String filename = args[1];
-        String fileContents = "";
+        String filename = null;
+        String engine = "tree";
+        boolean batch = false;
+        Path cacheDirectory = null;
+        Path snapshot = null;
+        Path saveSnapshot = null;
+        int warmup = 5;
+        int iterations = 20;
+        Path folded = Path.of("lox.folded");
+        boolean stats = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--engine=")) {
+                engine = args[i].substring("--engine=".length());
+            } else if (args[i].equals("--batch")) {
+                batch = true;
+            } else if (args[i].startsWith("--cache=")) {
+                cacheDirectory = Path.of(args[i].substring("--cache=".length()));
+            } else if (args[i].startsWith("--snapshot=")) {
+                snapshot = Path.of(args[i].substring("--snapshot=".length()));
+            } else if (args[i].startsWith("--save-snapshot=")) {
+                saveSnapshot = Path.of(args[i].substring("--save-snapshot=".length()));
+            } else if (args[i].startsWith("--warmup=")) {
+                warmup = count(args[i], "--warmup=", 0);
+            } else if (args[i].startsWith("--iterations=")) {
+                iterations = count(args[i], "--iterations=", 1);
+            } else if (args[i].equals("--stats")) {
+                stats = true;
+            } else if (args[i].startsWith("--folded=")) {
+                folded = Path.of(args[i].substring("--folded=".length()));
+            } else {
+                filename = args[i];
+            }
+        }
+        if (filename == null) {
+            System.err.println("Usage: ./your_program.sh <command> [--engine=tree|vm|jvm] [--batch] [--cache=<dir>] [--snapshot=<file>] [--save-snapshot=<file>] [--warmup=<n>] [--iterations=<n>] [--folded=<file>] [--stats] <filename>");
+            System.exit(1);
+        }
+        if (!engine.equals("tree") && !engine.equals("vm") && !engine.equals("jvm")) {
+            System.err.println("Unknown engine: " + engine);
+            System.exit(1);
+        }
+        if ((snapshot != null || saveSnapshot != null) && engine.equals("vm")) {
+            // The VM keeps its globals apart from the Interpreter's.
+            System.err.println("Snapshots are not supported by the vm engine.");
+            System.exit(1);
+        }
+        if (command.equals("profile") && engine.equals("vm")) {
+            // The VM's calls never reach LoxFunction, where frames are kept.
+            System.err.println("Profiling is not supported by the vm engine.");
+            System.exit(1);
+        }
+        if (batch) {
+            // The path names a directory whose scripts are all checked.
+            if (!command.equals("tokenize") && !command.equals("parse")) {
+                System.err.println("--batch supports only tokenize and parse.");
+                System.exit(1);
+            }
+            try {
+                if (!Batch.run(command, Path.of(filename))) {
+                    System.exit(65);
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading directory: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (stats) {
+            // Read by Stats when it loads, so before any interpreter exists
+            System.setProperty("lox.stats", "true");
+        }
+        ByteBuffer fileContents = null;
         try {
-            fileContents = Files.readString(Path.of(filename));
+            fileContents = Lox.readSource(Path.of(filename));
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
             System.exit(1);
@@ -24,44 +95,117 @@ public class Main {
         Lox lox = new Lox();
         switch (command) {
             case "tokenize":
-                List<Token> tokens = lox.runLoxScanner(fileContents);
-                for (Token token : tokens) {
-                    System.out.println(token);
+                // Printed straight from the token window in large chunks;
+                // neither a token list nor Token objects are built.
+                LoxEvents.Phase scan = LoxEvents.phase("scan");
+                TokenBuffer tokens = new TokenBuffer(new Scanner(fileContents));
+                StringBuilder out = new StringBuilder();
+                while (true) {
+                    tokens.appendPeek(out);
+                    out.append(System.lineSeparator());
+                    if (tokens.peekType() == TokenType.EOF) break;
+                    tokens.advance();
+                    // One scan event per chunk, each ended before the
+                    // chunk is printed, so printing is never timed.
+                    if (out.length() >= 1 << 16) {
+                        LoxEvents.end(scan);
+                        System.out.print(out);
+                        out.setLength(0);
+                        scan = LoxEvents.phase("scan");
+                    }
                 }
+                LoxEvents.end(scan);
+                System.out.print(out);
                 break;
 
             case "parse":
+                LoxEvents.Phase parse = LoxEvents.phase("parse");
                 Expr expression = lox.runLoxParser(fileContents);
+                LoxEvents.end(parse);
                 if (!Lox.hadError) {
                     System.out.println(new AstPrinter().print(expression));
                 }
                 break;
 
             case "evaluate":
+                LoxEvents.Phase evaluatePhase = LoxEvents.phase("parse");
                 Expr expressionToInterpret = lox.runLoxInterpreter(fileContents);
+                LoxEvents.end(evaluatePhase);
                 if (!Lox.hadError) {
+                    evaluatePhase = LoxEvents.phase("execute");
                     lox.interpreter.interpretExpression(expressionToInterpret);
+                    LoxEvents.end(evaluatePhase);
                 }
                 break;
 
             case "run":
-                List<Stmt> statements = lox.runLox(fileContents);
-                if (!Lox.hadError) {
-                    // Run resolver first
-                    Resolver resolver = new Resolver(lox.interpreter);
-                    resolver.resolve(statements);    
-                    if (!Lox.hadError) {
-                        // Then interpret
-                        lox.interpreter.interpretStatements(statements);
+            case "profile":
+                // Globals restored from a snapshot may be assigned by its code
+                boolean wholeProgram = snapshot == null;
+                // A cached script comes back already optimised and resolved
+                Path cached = cacheDirectory == null
+                    ? null : ScriptCache.path(cacheDirectory, fileContents, wholeProgram);
+                ByteBuffer source = fileContents;
+                List<Stmt> statements = cached == null
+                    ? null : ScriptCache.load(cached, () -> frontEnd(source, wholeProgram));
+                if (statements == null) {
+                    statements = frontEnd(source, wholeProgram);
+                    if (!Lox.hadError && cached != null) {
+                        ScriptCache.store(cached, statements);
+                    }
+                }
+                if (!Lox.hadError && snapshot != null) {
+                    try {
+                        Snapshot.restore(lox.interpreter, snapshot);
+                    } catch (IOException e) {
+                        System.err.println("Error reading snapshot: " + e.getMessage());
+                        System.exit(1);
+                    }
+                }
+                if (!Lox.hadError && command.equals("profile")) {
+                    // Runs as `run` does, then reports where the time went
+                    Profiler profiler = new Profiler(1_000_000);
+                    lox.interpreter.profiler = profiler;
+                    profiler.start();
+                    execute(lox.interpreter, statements, engine);
+                    profiler.stop();
+                    System.out.flush();
+                    profiler.report(System.err);
+                    try {
+                        profiler.writeFolded(folded);
+                        System.err.println("Folded stacks written to " + folded);
+                    } catch (IOException e) {
+                        System.err.println("Error writing folded stacks: " + e.getMessage());
+                        System.exit(1);
+                    }
+                } else if (!Lox.hadError) {
+                    execute(lox.interpreter, statements, engine);
+                }
+                if (!Lox.hadError && !Lox.hadRuntimeError && saveSnapshot != null) {
+                    try {
+                        Snapshot.save(lox.interpreter, saveSnapshot);
+                    } catch (IOException e) {
+                        System.err.println("Error writing snapshot: " + e.getMessage());
+                        System.exit(1);
                     }
                 }
                 break;
 
+            case "bench":
+                // Times whole runs; the script's own output is discarded
+                Bench.run(filename, fileContents, engine, warmup, iterations);
+                break;
+
             default:
                 System.err.println("Unknown command: " + command);
                 System.exit(1);
         }
 
+        if (Stats.ENABLED) {
+            System.out.flush();
+            Stats.report(System.err);
+        }
+
         if (Lox.hadError) {
             System.exit(65);
         }
@@ -70,4 +214,60 @@ public class Main {
             System.exit(70);
         }
     }
-}
\ No newline at end of file
+
+    // Parses, optimises and resolves a script, stopping after a parse error.
+    static List<Stmt> frontEnd(ByteBuffer source, boolean wholeProgram) {
+        LoxEvents.Phase phase = LoxEvents.phase("parse");
+        List<Stmt> statements = Lox.runLox(source);
+        LoxEvents.end(phase);
+        if (!Lox.hadError) {
+            // Fold constants before slots are numbered
+            phase = LoxEvents.phase("optimize");
+            statements = new Optimizer(wholeProgram).optimize(statements);
+            LoxEvents.end(phase);
+            // Run resolver first
+            phase = LoxEvents.phase("resolve");
+            Resolver resolver = new Resolver();
+            resolver.resolve(statements);
+            LoxEvents.end(phase);
+        }
+        return statements;
+    }
+
+    // Runs a resolved script on the chosen engine.
+    static void execute(Interpreter interpreter, List<Stmt> statements, String engine) {
+        LoxEvents.Phase phase = LoxEvents.phase("execute");
+        if (engine.equals("vm")) {
+            // Compile the resolved tree to bytecode and run it on the VM
+            VM.Proto script = new Compiler().compile(statements);
+            if (!Lox.hadError) {
+                new VM().interpret(script);
+            }
+        } else if (engine.equals("jvm")) {
+            // Compile every function to JVM bytecode; a script too
+            // large for one method is still tree-walked at top level
+            JvmCode script = new JvmCompiler().compile(statements);
+            if (script != null) {
+                interpreter.interpretCompiled(script);
+            } else {
+                interpreter.interpretStatements(statements);
+            }
+        } else {
+            // Then interpret
+            interpreter.interpretStatements(statements);
+        }
+        LoxEvents.end(phase);
+    }
+
+    private static int count(String arg, String flag, int min) {
+        try {
+            int value = Integer.parseInt(arg.substring(flag.length()));
+            if (value >= min) return value;
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        System.err.println("Expected a whole number of at least " + min + ": " + arg);
+        System.exit(1);
+        return min;
+    }
+}
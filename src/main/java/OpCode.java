@@ -0,0 +1,49 @@
+// package com.craftinginterpreters.lox;
+
+// Instruction set for the bytecode engine. Plain byte constants rather than
+// an enum so the VM's dispatch switch compiles to a dense tableswitch.
+// Operands noted as u8/u16 follow the opcode in the code stream.
+final class OpCode {
+    static final byte CONSTANT = 0;       // u16 constant index
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;      // u8 slot
+    static final byte SET_LOCAL = 6;      // u8 slot
+    static final byte GET_GLOBAL = 7;     // u16 symbol
+    static final byte DEFINE_GLOBAL = 8;  // u16 symbol
+    static final byte SET_GLOBAL = 9;     // u16 symbol
+    static final byte GET_UPVALUE = 10;   // u8 index
+    static final byte SET_UPVALUE = 11;   // u8 index
+    static final byte GET_PROPERTY = 12;  // u16 name
+    static final byte SET_PROPERTY = 13;  // u16 name
+    static final byte GET_SUPER = 14;     // u16 name
+    static final byte EQUAL = 15;
+    static final byte NOT_EQUAL = 16;
+    static final byte GREATER = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS = 19;
+    static final byte LESS_EQUAL = 20;
+    static final byte ADD = 21;
+    static final byte SUBTRACT = 22;
+    static final byte MULTIPLY = 23;
+    static final byte DIVIDE = 24;
+    static final byte NOT = 25;
+    static final byte NEGATE = 26;
+    static final byte PRINT = 27;
+    static final byte JUMP = 28;          // u16 forward offset
+    static final byte JUMP_IF_FALSE = 29; // u16 forward offset
+    static final byte LOOP = 30;          // u16 backward offset
+    static final byte CALL = 31;          // u8 argument count
+    static final byte INVOKE = 32;        // u16 name, u8 argument count
+    static final byte SUPER_INVOKE = 33;  // u16 name, u8 argument count
+    static final byte CLOSURE = 34;       // u16 function, then (u8 isLocal, u8 index) per upvalue
+    static final byte CLOSE_UPVALUE = 35;
+    static final byte RETURN = 36;
+    static final byte CLASS = 37;         // u16 name
+    static final byte INHERIT = 38;
+    static final byte METHOD = 39;        // u16 name
+
+    private OpCode() {}
+}
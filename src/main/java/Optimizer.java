@@ -0,0 +1,568 @@
+// package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+// Rewrites the parsed tree before the Resolver sees it: folds operators
+// whose operands are constants, substitutes variables that are never
+// reassigned and were initialised with a constant, and drops branches and
+// loops whose condition is a constant. Only what would evaluate without
+// error is folded; an ill-typed operation such as -"a" stays in the tree
+// to fail at runtime as before. Nodes are rebuilt only along changed paths.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // Marks a name bound by something other than a var: a parameter,
+    // function or class.
+    private static final Stmt.Var OTHER = new Stmt.Var(null, null);
+
+    // Scopes mirror the Resolver's so a name binds to the same declaration.
+    private final Stack<Map<String, Stmt.Var>> scopes = new Stack<>();
+    private final Writes writes = new Writes();
+    private final Map<Stmt.Var, Object> constants = new HashMap<>();
+    // Filled as top-level vars are reached, so only uses after the
+    // definition, which cannot run before it, are substituted.
+    private final Map<String, Object> globalConstants = new HashMap<>();
+    // Count of nodes the Resolver checks against their context (returns,
+    // this, super and declarations). A dead branch holding any of them is
+    // kept, so the static errors it would report still are.
+    private int checked = 0;
+    // The local var whose initializer is being optimised, which the
+    // Resolver forbids reading from the same scope.
+    private Stmt.Var initializing = null;
+    // False when other code, such as a restored Snapshot, may assign the
+    // script's globals; then no global is taken to be constant.
+    private final boolean wholeProgram;
+
+    Optimizer() {
+        this(true);
+    }
+
+    Optimizer(boolean wholeProgram) {
+        this.wholeProgram = wholeProgram;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        writes.scan(statements);
+        return statements(statements);
+    }
+
+    private List<Stmt> statements(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt optimized = statement.accept(this);
+            if (optimized != null) {
+                result.add(optimized);
+            }
+            changed |= optimized != statement;
+        }
+        return changed ? result : statements;
+    }
+
+    // For a position that needs a statement even when it folds away.
+    private Stmt statement(Stmt stmt) {
+        Stmt optimized = stmt.accept(this);
+        if (optimized == null) return new Stmt.Block(new ArrayList<>());
+        return optimized;
+    }
+
+    private Expr expression(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    private void declare(Token name, Stmt.Var declaration) {
+        if (scopes.isEmpty()) return;
+        scopes.peek().put(name.lexeme, declaration);
+    }
+
+    // The var a name refers to, OTHER for any other local binding, or null
+    // for a global.
+    private Stmt.Var lookup(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Stmt.Var declaration = scopes.get(i).get(name.lexeme);
+            if (declaration != null) return declaration;
+        }
+        return null;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashMap<>());
+        List<Stmt> statements = statements(stmt.statements);
+        scopes.pop();
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        checked++;
+        declare(stmt.name, OTHER);
+        // The superclass is left alone so a non-class still fails at runtime.
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        boolean changed = false;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function optimized = function(method);
+            methods.add(optimized);
+            changed |= optimized != method;
+        }
+        if (!changed) return stmt;
+        return new Stmt.Class(stmt.name, stmt.superclass, methods);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = expression(stmt.expression);
+        // A constant on its own has no effect.
+        if (isConstant(expression)) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, OTHER);
+        return function(stmt);
+    }
+
+    private Stmt.Function function(Stmt.Function stmt) {
+        checked++;
+        scopes.push(new HashMap<>());
+        for (Token param : stmt.params) {
+            declare(param, OTHER);
+        }
+        List<Stmt> body = statements(stmt.body);
+        scopes.pop();
+        if (body == stmt.body) return stmt;
+        return new Stmt.Function(stmt.name, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = expression(stmt.condition);
+        int before = checked;
+        Stmt thenBranch = statement(stmt.thenBranch);
+        boolean thenDroppable = checked == before;
+        before = checked;
+        Stmt elseBranch = stmt.elseBranch == null ? null : statement(stmt.elseBranch);
+        boolean elseDroppable = checked == before;
+        if (isConstant(condition)) {
+            if (isTruthy(value(condition))) {
+                if (elseDroppable) return thenBranch;
+            } else if (thenDroppable) {
+                return elseBranch;
+            }
+        }
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+            elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = expression(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        checked++;
+        if (stmt.value == null) return stmt;
+        Expr value = expression(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        checked++;
+        // Declared before the initializer, as the Resolver does.
+        declare(stmt.name, stmt);
+        if (stmt.initializer == null) return stmt;
+        Stmt.Var enclosing = initializing;
+        initializing = scopes.isEmpty() ? null : stmt;
+        Expr initializer = expression(stmt.initializer);
+        initializing = enclosing;
+        if (isConstant(initializer)) {
+            if (!scopes.isEmpty()) {
+                if (!writes.assigned.contains(stmt)) {
+                    constants.put(stmt, value(initializer));
+                }
+            } else if (wholeProgram && writes.isFixedGlobal(stmt.name.lexeme)) {
+                globalConstants.put(stmt.name.lexeme, value(initializer));
+            }
+        }
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = expression(stmt.condition);
+        int before = checked;
+        Stmt body = statement(stmt.body);
+        if (isConstant(condition) && !isTruthy(value(condition)) && checked == before) {
+            return null;
+        }
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = expression(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = expression(expr.left);
+        Expr right = expression(expr.right);
+        if (isConstant(left) && isConstant(right)) {
+            Object folded = fold(expr.operator, value(left), value(right));
+            if (folded != expr.operator) return new Expr.Literal(folded);
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // The Interpreter's result for constant operands, or the operator
+    // token when it would throw.
+    private static Object fold(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                break;
+        }
+        if (!(left instanceof Double && right instanceof Double)) return operator;
+        double a = (Double) left;
+        double b = (Double) right;
+        switch (operator.type) {
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+            case MINUS: return a - b;
+            case PLUS: return a + b;
+            case SLASH: return a / b;
+            case STAR: return a * b;
+        }
+        return operator;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = expression(expr.callee);
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr optimized = expression(argument);
+            arguments.add(optimized);
+            changed |= optimized != argument;
+        }
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = expression(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = expression(expr.expression);
+        if (isConstant(expression)) return expression;
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = expression(expr.left);
+        int before = checked;
+        Expr right = expression(expr.right);
+        if (isConstant(left)) {
+            // The operator yields the left operand itself or the right one;
+            // a right operand the Resolver must check is kept, as in visitIfStmt.
+            boolean truthy = isTruthy(value(left));
+            boolean keepsLeft = expr.operator.type == TokenType.OR ? truthy : !truthy;
+            if (!keepsLeft) return right;
+            if (checked == before) return left;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = expression(expr.object);
+        Expr value = expression(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        checked++;
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        checked++;
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = expression(expr.right);
+        if (isConstant(right)) {
+            Object value = value(right);
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!isTruthy(value));
+            }
+            if (value instanceof Double) {
+                return new Expr.Literal(-(Double) value);
+            }
+        }
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (initializing != null && scopes.peek().get(expr.name.lexeme) == initializing) {
+            checked++;
+        }
+        Stmt.Var declaration = lookup(expr.name);
+        if (declaration == null) {
+            if (globalConstants.containsKey(expr.name.lexeme)) {
+                return new Expr.Literal(globalConstants.get(expr.name.lexeme));
+            }
+        } else if (constants.containsKey(declaration)) {
+            return new Expr.Literal(constants.get(declaration));
+        }
+        return expr;
+    }
+
+    // First pass: finds which vars are ever assigned, and how many times
+    // each global name is declared, with the same scoping as above.
+    private static class Writes implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Stack<Map<String, Stmt.Var>> scopes = new Stack<>();
+        final Set<Stmt.Var> assigned = new HashSet<>();
+        private final Set<String> assignedGlobals = new HashSet<>();
+        private final Map<String, Integer> globalDeclarations = new HashMap<>();
+
+        void scan(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        // Declared once and never assigned anywhere.
+        boolean isFixedGlobal(String name) {
+            return globalDeclarations.get(name) == 1 && !assignedGlobals.contains(name);
+        }
+
+        private void declare(Token name, Stmt.Var declaration) {
+            if (scopes.isEmpty()) {
+                globalDeclarations.merge(name.lexeme, 1, Integer::sum);
+            } else {
+                scopes.peek().put(name.lexeme, declaration);
+            }
+        }
+
+        private void scan(Expr expr) {
+            expr.accept(this);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scopes.push(new HashMap<>());
+            scan(stmt.statements);
+            scopes.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            declare(stmt.name, OTHER);
+            for (Stmt.Function method : stmt.methods) {
+                function(method);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            declare(stmt.name, OTHER);
+            function(stmt);
+            return null;
+        }
+
+        private void function(Stmt.Function stmt) {
+            scopes.push(new HashMap<>());
+            for (Token param : stmt.params) {
+                declare(param, OTHER);
+            }
+            scan(stmt.body);
+            scopes.pop();
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            scan(stmt.condition);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) scan(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            declare(stmt.name, stmt);
+            if (stmt.initializer != null) scan(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            scan(stmt.condition);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            scan(expr.value);
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                Stmt.Var declaration = scopes.get(i).get(expr.name.lexeme);
+                if (declaration != null) {
+                    assigned.add(declaration);
+                    return null;
+                }
+            }
+            assignedGlobals.add(expr.name.lexeme);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            scan(expr.callee);
+            for (Expr argument : expr.arguments) {
+                scan(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            scan(expr.object);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            scan(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            scan(expr.object);
+            scan(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+    }
+}
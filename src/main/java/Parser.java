@@ -3,21 +3,27 @@
 import java.util.*;
 
 class Parser {
-    private final List<Token> tokens;
-    private int current = 0;
+    // Read in place from the scanner's window; a Token object is made only
+    // for tokens that end up in the tree or in an error.
+    private final TokenBuffer tokens;
 
     private static class ParseError extends RuntimeException {}
 
-    Parser(List<Token> tokens) {
-        this.tokens = tokens;
+    Parser(Scanner scanner) {
+        this.tokens = new TokenBuffer(scanner);
     }
 
     Expr parseExpression() {
+        Expr expression;
         try {
-            return expression();
+            expression = expression();
         } catch (ParseError error) {
-            return null;
+            expression = null;
         }
+        // Scan the rest, so every lexical error after the expression or
+        // its first parse error is still reported.
+        tokens.skipToEnd();
+        return expression;
     }
 
     List<Stmt> parseStatements() {
@@ -66,7 +72,8 @@ class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
+        consume(TokenType.IDENTIFIER, "Expect variable name.");
+        Token name = previous();
         Expr initializer = null;
             if (match(TokenType.EQUAL)) {
             initializer = expression();
@@ -76,7 +83,8 @@ class Parser {
     }
 
     private Stmt classDeclaration() {
-        Token name = consume(TokenType.IDENTIFIER, "Expect class name.");
+        consume(TokenType.IDENTIFIER, "Expect class name.");
+        Token name = previous();
         Expr.Variable superclass = null;
         if (match(TokenType.LESS)) {
             consume(TokenType.IDENTIFIER, "Expect superclass name.");
@@ -210,7 +218,8 @@ class Parser {
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
+        consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
+        Token name = previous();
         consume(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(TokenType.RIGHT_PAREN)) {
@@ -218,7 +227,8 @@ class Parser {
                     if (parameters.size() >= 255) {
                         error(peek(), "Can't have more than 255 parameters.");
                     }
-                    parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
+                    consume(TokenType.IDENTIFIER, "Expect parameter name.");
+                    parameters.add(previous());
             } while (match(TokenType.COMMA));
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
@@ -294,7 +304,8 @@ class Parser {
             if (match(TokenType.LEFT_PAREN)) {
                 expr = finishCall(expr);
             } else if (match(TokenType.DOT)) {
-                Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
+                consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
+                Token name = previous();
                 expr = new Expr.Get(expr, name);
             } else {
                 break;
@@ -313,7 +324,8 @@ class Parser {
                 arguments.add(expression());
             } while (match(TokenType.COMMA));
         }
-        Token paren = consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+        Token paren = previous();
         return new Expr.Call(callee, paren, arguments);
     }
 
@@ -329,7 +341,8 @@ class Parser {
         if (match(TokenType.SUPER)) {
             Token keyword = previous();
             consume(TokenType.DOT, "Expect '.' after 'super'.");
-            Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
+            consume(TokenType.IDENTIFIER, "Expect superclass method name.");
+            Token method = previous();
             return new Expr.Super(keyword, method);
         }
         if (match(TokenType.THIS))
@@ -344,9 +357,11 @@ class Parser {
         throw error(peek(), "Expect expression.");
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) 
-            return advance();
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw error(peek(), message);
     }
 
@@ -364,25 +379,23 @@ class Parser {
         if (isAtEnd()) 
             return false;
 
-        return peek().type == type;
+        return tokens.peekType() == type;
     }
 
-    private Token advance() {
-        if (!isAtEnd()) 
-            current++;
-        return previous();
+    private void advance() {
+        tokens.advance();
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return tokens.peekType() == TokenType.EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.peek();
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.previous();
     }
 
     private ParseError error(Token token, String message) {
@@ -393,10 +406,10 @@ class Parser {
     private void synchronize() {
         advance();
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON) {
+            if (tokens.previousType() == TokenType.SEMICOLON) {
                 return;
             }
-            switch (peek().type) {
+            switch (tokens.peekType()) {
                 case TokenType.CLASS:
                 case TokenType.FUN:
                 case TokenType.VAR:
@@ -0,0 +1,142 @@
+// package com.craftinginterpreters.lox;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+// The `profile` command's sampler. The interpreter keeps a shadow stack
+// of Lox frames here, each a function name and the line it was called
+// from; a daemon thread copies that stack every interval and counts how
+// often each one is seen. A call costs the interpreter two array stores
+// and a release store of the depth, and nothing is allocated on its
+// thread, so the samples describe the script rather than the profiler.
+//
+// The sampler reads without stopping the interpreter, so a sample taken
+// mid-call may mix the frames of a call and its return; at a millisecond
+// interval that is noise, not skew.
+class Profiler {
+    private static final VarHandle DEPTH;
+    static {
+        try {
+            DEPTH = MethodHandles.lookup().findVarHandle(Profiler.class, "depth", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long intervalNanos;
+    // Written only by the interpreter's thread. The arrays are replaced,
+    // never shrunk, before the depth that reaches into them is published.
+    private String[] names = new String[64];
+    private int[] lines = new int[64];
+    private int depth;
+    // Line of the call being made, picked up by the enter() it leads to.
+    int callSite;
+
+    // Folded stack to the number of samples that saw it. Only the sampler
+    // touches it until stop() has joined that thread.
+    private final Map<String, long[]> samples = new HashMap<>();
+    private long total;
+    private Thread sampler;
+    private volatile boolean running;
+
+    Profiler(long intervalNanos) {
+        this.intervalNanos = intervalNanos;
+    }
+
+    void enter(String name) {
+        int top = depth;
+        if (top == names.length) {
+            names = Arrays.copyOf(names, top * 2);
+            lines = Arrays.copyOf(lines, top * 2);
+        }
+        names[top] = name;
+        lines[top] = callSite;
+        DEPTH.setRelease(this, top + 1);
+    }
+
+    void exit() {
+        DEPTH.setRelease(this, depth - 1);
+    }
+
+    void start() {
+        running = true;
+        sampler = new Thread(() -> {
+            while (running) {
+                LockSupport.parkNanos(intervalNanos);
+                sample();
+            }
+        }, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    void stop() {
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sample() {
+        int top = (int) DEPTH.getAcquire(this);
+        String[] names = this.names;
+        int[] lines = this.lines;
+        StringBuilder stack = new StringBuilder("<script>");
+        for (int i = 0; i < top && i < names.length; i++) {
+            stack.append(';').append(names[i]).append(':').append(lines[i]);
+        }
+        samples.computeIfAbsent(stack.toString(), key -> new long[1])[0]++;
+        total++;
+    }
+
+    // One line per distinct stack, root first, then its sample count: the
+    // input flamegraph.pl and speedscope expect.
+    void writeFolded(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            for (Map.Entry<String, long[]> entry : samples.entrySet()) {
+                out.println(entry.getKey() + " " + entry.getValue()[0]);
+            }
+        }
+    }
+
+    // Self time is the samples a function was running in, total time those
+    // it was anywhere on the stack; a recursive function counts once per
+    // sample. Functions are told apart by name, whatever the call site.
+    void report(PrintStream out) {
+        Map<String, long[]> functions = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : samples.entrySet()) {
+            String[] frames = entry.getKey().split(";");
+            long count = entry.getValue()[0];
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < frames.length; i++) {
+                String name = frames[i];
+                int colon = name.lastIndexOf(':');
+                if (i > 0 && colon >= 0) name = name.substring(0, colon);
+                long[] times = functions.computeIfAbsent(name, key -> new long[2]);
+                if (i == frames.length - 1) times[0] += count;
+                if (seen.add(name)) times[1] += count;
+            }
+        }
+        List<Map.Entry<String, long[]>> rows = new ArrayList<>(functions.entrySet());
+        rows.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        double millis = intervalNanos / 1e6;
+        out.printf("%d samples, every %.3f ms%n", total, millis);
+        out.printf("%10s %7s %10s %7s  %s%n", "self ms", "self%", "total ms", "total%", "function");
+        for (Map.Entry<String, long[]> row : rows) {
+            long self = row.getValue()[0];
+            long all = row.getValue()[1];
+            out.printf("%10.1f %6.1f%% %10.1f %6.1f%%  %s%n",
+                self * millis, percent(self), all * millis, percent(all), row.getKey());
+        }
+    }
+
+    private double percent(long count) {
+        return total == 0 ? 0 : 100.0 * count / total;
+    }
+}
@@ -2,9 +2,20 @@
 
 public class RuntimeError extends RuntimeException {
     final Token token;
+    final int line;
 
+    // No Java stack trace: the report only needs the Lox line, and scripts
+    // that raise errors routinely shouldn't pay for filling one in.
     public RuntimeError(Token token, String message) {
-        super(message);
+        super(message, null, false, false);
         this.token = token;
+        this.line = token == null ? 0 : token.line;
+    }
+
+    // Raised by the VM, which only keeps line numbers for its bytecode.
+    public RuntimeError(int line, String message) {
+        super(message, null, false, false);
+        this.token = null;
+        this.line = line;
     }
 }
@@ -1,17 +1,30 @@
 // package com.craftinginterpreters.lox;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 // import static com.craftinginterpreters.lox.TokenType.*; 
 
 
 class Scanner {
-    private static String source;
-    private static final List<Token> tokens = new ArrayList<>();
-    private static int start = 0;
-    private static int current = 0;
-    private static int line = 1;
+    // All scanning state is per instance, so separate scanners can run on
+    // different threads; only the keyword table is shared, and it is never
+    // written after class initialisation.
+    // The source is UTF-8 bytes, often a mapped file, read in place:
+    // everything Lox gives meaning to is ASCII, so only lexemes and
+    // error messages ever decode.
+    private final ByteBuffer source;
+    private final int length;
+    // Buffer being filled by the current fill() call.
+    private TokenBuffer out;
+    private int start = 0;
+    private int current = 0;
+    private int line = 1;
+    // Direct-mapped cache from an identifier's byte hash to its symbol id,
+    // so a name seen before costs no String. -1 marks an empty entry.
+    private final int[] symbolCache = new int[1024];
         
-    private static final Map<String, TokenType> keywords;
+    static final Map<String, TokenType> keywords;
     static {
         keywords = new HashMap<>();
         keywords.put("and", TokenType.AND);
@@ -32,24 +45,36 @@ class Scanner {
         keywords.put("while", TokenType.WHILE);
     }
 
-    Scanner(String source) {
+    Scanner(ByteBuffer source) {
         this.source = source;
+        this.length = source.limit();
+        Arrays.fill(symbolCache, -1);
     }
 
-    protected static List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    // Bytes of source, which bounds the number of tokens.
+    int length() {
+        return length;
+    }
+
+    // Scans until the buffer is full or the source ends with EOF, so only
+    // a window of tokens exists at a time.
+    void fill(TokenBuffer buffer) {
+        out = buffer;
+        while (!isAtEnd() && !buffer.isFull()) {
             start = current;
             scanToken();
         }
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        if (isAtEnd() && !buffer.isFull()) {
+            buffer.add(TokenType.EOF, current, 0, line);
+        }
+        out = null;
     }
 
-    private static boolean isAtEnd() {
-        return current >= source.length();
+    private boolean isAtEnd() {
+        return current >= length;
     }
 
-    private static void scanToken() {
+    private void scanToken() {
         char c = advance();
         switch (c) {
             // Single-character tokens.
@@ -93,7 +118,9 @@ class Scanner {
                 string();
                 break;
             default:
-                if (Character.isDigit(c)) {
+                if (c >= 0x80) {
+                    nonAscii();
+                } else if (Character.isDigit(c)) {
                     number();
                 } else if (Character.isAlphabetic(c) || c == '_') {
                     identifier();
@@ -104,7 +131,7 @@ class Scanner {
         }
     }
 
-    private static void handleSingleCharacterToken(char c) {
+    private void handleSingleCharacterToken(char c) {
         switch (c) {
             case '(':
                 addToken(TokenType.LEFT_PAREN);
@@ -139,7 +166,7 @@ class Scanner {
         }
     }
 
-    private static void handleOneOrTwoCharacterToken(char c) {
+    private void handleOneOrTwoCharacterToken(char c) {
         switch (c) {
             case '!':
                 addToken(
@@ -172,7 +199,7 @@ class Scanner {
         }
     }
 
-    private static void handleSlashToken() {
+    private void handleSlashToken() {
         if (match('/')) {
             while (peek() != '\n' && !isAtEnd()) {
                 advance();
@@ -193,39 +220,59 @@ class Scanner {
         }
     }
 
-    private static char advance() {
-        return source.charAt(current++);
+    private char advance() {
+        return (char)(source.get(current++) & 0xff);
+    }
+
+    // A multi-byte UTF-8 sequence outside a string or comment. Decoded and
+    // judged per UTF-16 char, as scanning a String used to.
+    private void nonAscii() {
+        int lead = source.get(start) & 0xff;
+        int size = lead >= 0xf0 ? 4 : lead >= 0xe0 ? 3 : lead >= 0xc0 ? 2 : 1;
+        current = Math.min(start + size, length);
+        String text = text(start, current);
+        if (text.length() == 1 && Character.isDigit(text.charAt(0))) {
+            number();
+        } else if (text.length() == 1 && Character.isAlphabetic(text.charAt(0))) {
+            identifier();
+        } else {
+            for (char c : text.toCharArray()) {
+                Lox.error(line, "Unexpected character: " + c);
+            }
+        }
     }
 
-    private static void addToken(TokenType type) {
-        addToken(type, null);
+    String text(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        source.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private static void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        Token token = new Token(type, text, literal, line);
-        tokens.add(token);
+    // Only the token's extent is recorded; TokenBuffer decodes its lexeme
+    // and literal if they are ever asked for.
+    private void addToken(TokenType type) {
+        out.add(type, start, current - start, line);
     }
 
-    private static boolean match(char expected) {
+    private boolean match(char expected) {
         if (isAtEnd()) 
             return false;
                 
-        if (source.charAt(current) != expected)
+        if (source.get(current) != expected)
             return false;
 
         current++;
         return true;
     }
 
-    private static char peek() {
+    private char peek() {
         if (isAtEnd()) 
             return '\0';
 
-        return source.charAt(current);
+        return (char)(source.get(current) & 0xff);
     }
 
-    private static void string() {
+    private void string() {
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') 
                 line++;
@@ -236,33 +283,56 @@ class Scanner {
             return;
         }
         advance();
-        // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        addToken(TokenType.STRING);
     }
 
     private static boolean isDigit(char c) {
         return c >= '0' && c <= '9';
     }
 
-    private static void number() {
-        while (isDigit(peek())) 
-            advance();
+    // Powers of ten that are exact as doubles.
+    private static final double[] POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT = 1L << 53;
+
+    // Builds the value while scanning. When the digits fit in a double's
+    // mantissa and there are at most 22 decimals, one division of two exact
+    // doubles is correctly rounded, matching Double.parseDouble; anything
+    // longer is left as NaN for TokenBuffer to parse from the text.
+    private void number() {
+        // A non-ASCII digit from nonAscii() goes to the general parser.
+        boolean exact = source.get(start) >= 0;
+        long mantissa = exact ? source.get(start) - '0' : 0;
+        while (isDigit(peek())) {
+            char c = advance();
+            if (exact) {
+                mantissa = mantissa * 10 + (c - '0');
+                exact = mantissa <= MAX_EXACT;
+            }
+        }
+        int scale = 0;
         if (peek() == '.' && isDigit(peekNext())) {
             advance();
-            while (isDigit(peek())) 
-                advance();
+            while (isDigit(peek())) {
+                char c = advance();
+                if (exact) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    scale++;
+                    exact = mantissa <= MAX_EXACT && scale < POWERS.length;
+                }
+            }
         }
-        // Parse the number as a double.
-        String number = source.substring(start, current);
-        addToken(TokenType.NUMBER, Double.parseDouble(number));
+        double value = exact ? mantissa / POWERS[scale] : Double.NaN;
+        out.add(TokenType.NUMBER, start, current - start, line, value);
     }
 
-    private static char peekNext() {
-        if (current + 1 >= source.length()) 
+    private char peekNext() {
+        if (current + 1 >= length) 
             return '\0';
 
-        return source.charAt(current + 1);
+        return (char)(source.get(current + 1) & 0xff);
     }
 
     private static boolean isAlpha(char c) {
@@ -271,14 +341,90 @@ class Scanner {
                c == '_';
     }
 
-    private static void identifier() {
+    private void identifier() {
         while (isAlphaNumeric(peek())) 
             advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) 
-            type = TokenType.IDENTIFIER;
-        addToken(type);
+        TokenType type = keyword();
+        if (type != null) {
+            addToken(type);
+            return;
+        }
+        out.add(TokenType.IDENTIFIER, start, current - start, line, symbol());
+    }
+
+    // Recognises a keyword in place by length and first letter; the
+    // `keywords` map is left for code that needs the spelling.
+    private TokenType keyword() {
+        switch (current - start) {
+            case 2:
+                switch (source.get(start)) {
+                    case 'i': return rest("if", TokenType.IF);
+                    case 'o': return rest("or", TokenType.OR);
+                }
+                break;
+            case 3:
+                switch (source.get(start)) {
+                    case 'a': return rest("and", TokenType.AND);
+                    case 'f':
+                        TokenType type = rest("fun", TokenType.FUN);
+                        return type != null ? type : rest("for", TokenType.FOR);
+                    case 'n': return rest("nil", TokenType.NIL);
+                    case 'v': return rest("var", TokenType.VAR);
+                }
+                break;
+            case 4:
+                switch (source.get(start)) {
+                    case 'e': return rest("else", TokenType.ELSE);
+                    case 't':
+                        TokenType type = rest("this", TokenType.THIS);
+                        return type != null ? type : rest("true", TokenType.TRUE);
+                }
+                break;
+            case 5:
+                switch (source.get(start)) {
+                    case 'c': return rest("class", TokenType.CLASS);
+                    case 'f': return rest("false", TokenType.FALSE);
+                    case 'p': return rest("print", TokenType.PRINT);
+                    case 's': return rest("super", TokenType.SUPER);
+                    case 'w': return rest("while", TokenType.WHILE);
+                }
+                break;
+            case 6:
+                if (source.get(start) == 'r') return rest("return", TokenType.RETURN);
+                break;
+        }
+        return null;
+    }
+
+    // The lexeme, whose length and first letter already match, is `word`.
+    private TokenType rest(String word, TokenType type) {
+        for (int i = 1; i < word.length(); i++) {
+            if (source.get(start + i) != word.charAt(i)) return null;
+        }
+        return type;
+    }
+
+    private int symbol() {
+        // Identifiers are ASCII after their first character.
+        if (source.get(start) < 0) return Symbols.intern(text(start, current));
+        int hash = 0;
+        for (int i = start; i < current; i++) {
+            hash = 31 * hash + source.get(i);
+        }
+        int entry = (hash ^ (hash >>> 16)) & (symbolCache.length - 1);
+        int symbol = symbolCache[entry];
+        if (symbol >= 0 && sameText(Symbols.name(symbol))) return symbol;
+        symbol = Symbols.intern(text(start, current));
+        symbolCache[entry] = symbol;
+        return symbol;
+    }
+
+    private boolean sameText(String name) {
+        if (name.length() != current - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (source.get(start + i) != name.charAt(i)) return false;
+        }
+        return true;
     }
 
     private static boolean isAlphaNumeric(char c) {
@@ -0,0 +1,682 @@
+// package com.craftinginterpreters.lox;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Supplier;
+
+// On-disk cache of scripts after the Optimizer and Resolver, keyed by a
+// hash of the source, so a repeated `run --cache=<dir>` skips the whole
+// front end. The file is mapped and each function body is only decoded
+// when something first walks it, so functions a run never calls are
+// never built. A missing, stale or unreadable entry is just a miss.
+//
+// An entry is the SHA-256 of its encoding followed by the encoding, and
+// is checked before any of it is decoded, so a damaged file never reaches
+// the interpreter. Should a body still fail to decode later, the source is
+// parsed afresh and the same function's body taken from that tree.
+class ScriptCache {
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    // Bump whenever the encoding or what the tree carries changes.
+    private static final int VERSION = 2;
+    private static final int DIGEST = 32;
+
+    // Node tags. NONE stands for an absent optional child.
+    private static final byte NONE = 0;
+    private static final byte ASSIGN = 1;
+    private static final byte BINARY = 2;
+    private static final byte CALL = 3;
+    private static final byte GET = 4;
+    private static final byte GROUPING = 5;
+    private static final byte LITERAL = 6;
+    private static final byte LOGICAL = 7;
+    private static final byte SET = 8;
+    private static final byte SUPER = 9;
+    private static final byte THIS = 10;
+    private static final byte UNARY = 11;
+    private static final byte VARIABLE = 12;
+    private static final byte BLOCK = 13;
+    private static final byte CLASS = 14;
+    private static final byte EXPRESSION = 15;
+    private static final byte FUNCTION = 16;
+    private static final byte IF = 17;
+    private static final byte PRINT = 18;
+    private static final byte RETURN = 19;
+    private static final byte VAR = 20;
+    private static final byte WHILE = 21;
+
+    // Literal value tags.
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // Cache entry for this source under directory. What the Optimizer may
+    // assume depends on whether other code can assign the script's
+    // globals, so that is part of the key.
+    static Path path(Path directory, ByteBuffer source, boolean wholeProgram) {
+        MessageDigest digest = sha256();
+        digest.update(source.duplicate());
+        digest.update((byte) (wholeProgram ? 1 : 0));
+        return directory.resolve(HexFormat.of().formatHex(digest.digest()) + ".loxc");
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The resolved statements, or null on a miss. parse runs the front end
+    // on the source, for a body that cannot be decoded after all.
+    static List<Stmt> load(Path file, Supplier<List<Stmt>> parse) {
+        ByteBuffer buffer;
+        try {
+            buffer = Lox.readSource(file);
+        } catch (IOException e) {
+            return null;
+        }
+        if (buffer.remaining() < DIGEST) return null;
+        byte[] expected = new byte[DIGEST];
+        buffer.get(expected);
+        MessageDigest digest = sha256();
+        digest.update(buffer.duplicate());
+        if (!MessageDigest.isEqual(expected, digest.digest())) return null;
+        return decode(buffer.slice(), new Fallback(parse));
+    }
+
+    // Best effort: a cache that cannot be written only costs the next run
+    // its speed-up. Written aside and moved in, so readers never see half
+    // a file.
+    static void store(Path file, List<Stmt> statements) {
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), "lox", ".tmp");
+            byte[] encoded = encode(statements);
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write(sha256().digest(encoded));
+                out.write(encoded);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Left for the next run to try again.
+        }
+    }
+
+    // The encoded form of resolved statements; Snapshot embeds it too.
+    static byte[] encode(List<Stmt> statements) {
+        Writer writer = new Writer();
+        writer.statements(statements);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(writer.strings.size());
+            for (String string : writer.strings.keySet()) {
+                byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            writer.bytes.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Null when buffer does not hold statements in this version's encoding.
+    static List<Stmt> decode(ByteBuffer buffer) {
+        return decode(buffer, null);
+    }
+
+    private static List<Stmt> decode(ByteBuffer buffer, Fallback fallback) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return new Reader(buffer, strings, fallback).statements();
+        } catch (RuntimeException e) {
+            // Truncated or corrupt.
+            return null;
+        }
+    }
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        // Every lexeme and string literal, stored once in a table up front.
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        // Functions are numbered in the order they are written, outer
+        // before inner; when set, bodies collects them by that number.
+        private int functions = 0;
+        List<List<Stmt>> bodies;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private DataOutputStream out = new DataOutputStream(bytes);
+
+        // Writes to a ByteArrayOutputStream cannot fail, so these keep the
+        // visitors free of IOException.
+        private void u8(int value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void i32(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void f64(double value) {
+            try {
+                out.writeDouble(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void statements(List<Stmt> statements) {
+            i32(statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt == null) {
+                u8(NONE);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void expr(Expr expr) {
+            if (expr == null) {
+                u8(NONE);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.put(string, index);
+            }
+            i32(index);
+        }
+
+        private void token(Token token) {
+            u8(token.type.ordinal());
+            string(token.lexeme);
+            i32(token.line);
+        }
+
+        private void resolved(Expr.Resolvable expr) {
+            i32(expr.depth);
+            i32(expr.slot);
+        }
+
+        // A body is length-prefixed so the reader can skip it until used.
+        private void function(Stmt.Function function) {
+            int index = functions++;
+            if (bodies != null) bodies.add(function.body);
+            token(function.name);
+            i32(function.params.size());
+            for (Token param : function.params) {
+                token(param);
+            }
+            i32(function.frameSize);
+            ByteArrayOutputStream outer = bytes;
+            DataOutputStream outerOut = out;
+            bytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(bytes);
+            statements(function.body);
+            byte[] body = bytes.toByteArray();
+            bytes = outer;
+            out = outerOut;
+            i32(index);
+            i32(body.length);
+            bytes.writeBytes(body);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            u8(BLOCK);
+            statements(stmt.statements);
+            i32(stmt.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            u8(CLASS);
+            token(stmt.name);
+            expr(stmt.superclass);
+            i32(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) {
+                function(method);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            u8(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            u8(FUNCTION);
+            function(stmt);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            u8(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            u8(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            u8(RETURN);
+            token(stmt.keyword);
+            expr(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            u8(VAR);
+            token(stmt.name);
+            expr(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            u8(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            u8(ASSIGN);
+            token(expr.name);
+            expr(expr.value);
+            resolved(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            u8(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            u8(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            i32(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                expr(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            u8(GET);
+            expr(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            u8(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            u8(LITERAL);
+            Object value = expr.value;
+            if (value == null) {
+                u8(NIL);
+            } else if (value instanceof Boolean) {
+                u8((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                u8(NUMBER);
+                f64((Double) value);
+            } else {
+                u8(STRING);
+                string((String) value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            u8(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            u8(SET);
+            expr(expr.object);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            u8(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            resolved(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            u8(THIS);
+            token(expr.keyword);
+            resolved(expr);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            u8(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            u8(VARIABLE);
+            token(expr.name);
+            resolved(expr);
+            return null;
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer buffer;
+        private final String[] strings;
+        private final Fallback fallback;
+
+        Reader(ByteBuffer buffer, String[] strings, Fallback fallback) {
+            this.buffer = buffer;
+            this.strings = strings;
+            this.fallback = fallback;
+        }
+
+        List<Stmt> statements() {
+            int count = buffer.getInt();
+            List<Stmt> statements = new ArrayList<>(capacity(count));
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        // Every element takes at least a byte, so a damaged count cannot
+        // presize a list past what is left.
+        private int capacity(int count) {
+            return Math.max(0, Math.min(count, buffer.remaining()));
+        }
+
+        private Token token() {
+            TokenType type = TYPES[buffer.get()];
+            String lexeme = strings[buffer.getInt()];
+            return new Token(type, lexeme, null, buffer.getInt());
+        }
+
+        private <T extends Expr.Resolvable> T resolved(T expr) {
+            expr.depth = buffer.getInt();
+            expr.slot = buffer.getInt();
+            return expr;
+        }
+
+        private Stmt.Function function() {
+            Token name = token();
+            int count = buffer.getInt();
+            List<Token> params = new ArrayList<>(capacity(count));
+            for (int i = 0; i < count; i++) {
+                params.add(token());
+            }
+            int frameSize = buffer.getInt();
+            int index = buffer.getInt();
+            int length = buffer.getInt();
+            LazyBody body = new LazyBody(buffer.duplicate(), strings, index, fallback);
+            buffer.position(buffer.position() + length);
+            Stmt.Function function = new Stmt.Function(name, params, body);
+            function.frameSize = frameSize;
+            return function;
+        }
+
+        private Stmt stmt() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(statements());
+                    block.frameSize = buffer.getInt();
+                    return block;
+                }
+                case CLASS: {
+                    Token name = token();
+                    Expr.Variable superclass = (Expr.Variable) expr();
+                    int count = buffer.getInt();
+                    List<Stmt.Function> methods = new ArrayList<>(capacity(count));
+                    for (int i = 0; i < count; i++) {
+                        methods.add(function());
+                    }
+                    return new Stmt.Class(name, superclass, methods);
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case FUNCTION:
+                    return function();
+                case IF: {
+                    Expr condition = expr();
+                    Stmt thenBranch = stmt();
+                    return new Stmt.If(condition, thenBranch, stmt());
+                }
+                case PRINT:
+                    return new Stmt.Print(expr());
+                case RETURN: {
+                    Token keyword = token();
+                    return new Stmt.Return(keyword, expr());
+                }
+                case VAR: {
+                    Token name = token();
+                    return new Stmt.Var(name, expr());
+                }
+                case WHILE: {
+                    Expr condition = expr();
+                    return new Stmt.While(condition, stmt());
+                }
+            }
+            throw new IndexOutOfBoundsException("Bad statement tag " + tag);
+        }
+
+        private Expr expr() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case ASSIGN: {
+                    Token name = token();
+                    return resolved(new Expr.Assign(name, expr()));
+                }
+                case BINARY: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Binary(left, operator, expr());
+                }
+                case CALL: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    int count = buffer.getInt();
+                    List<Expr> arguments = new ArrayList<>(capacity(count));
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(expr());
+                    }
+                    return new Expr.Call(callee, paren, arguments);
+                }
+                case GET: {
+                    Expr object = expr();
+                    return new Expr.Get(object, token());
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL:
+                    return new Expr.Literal(literal());
+                case LOGICAL: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expr());
+                }
+                case SET: {
+                    Expr object = expr();
+                    Token name = token();
+                    return new Expr.Set(object, name, expr());
+                }
+                case SUPER: {
+                    Token keyword = token();
+                    return resolved(new Expr.Super(keyword, token()));
+                }
+                case THIS:
+                    return resolved(new Expr.This(token()));
+                case UNARY: {
+                    Token operator = token();
+                    return new Expr.Unary(operator, expr());
+                }
+                case VARIABLE:
+                    return resolved(new Expr.Variable(token()));
+            }
+            throw new IndexOutOfBoundsException("Bad expression tag " + tag);
+        }
+
+        private Object literal() {
+            switch (buffer.get()) {
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return buffer.getDouble();
+                case STRING: return strings[buffer.getInt()];
+                default: return null;
+            }
+        }
+    }
+
+    // A function body left encoded in the mapped file until first walked.
+    private static class LazyBody extends AbstractList<Stmt> implements RandomAccess {
+        private ByteBuffer buffer;
+        private final String[] strings;
+        private final int index;
+        // Null for encodings without a source, as in a Snapshot.
+        private final Fallback fallback;
+        private List<Stmt> statements;
+
+        LazyBody(ByteBuffer buffer, String[] strings, int index, Fallback fallback) {
+            this.buffer = buffer;
+            this.strings = strings;
+            this.index = index;
+            this.fallback = fallback;
+        }
+
+        private List<Stmt> statements() {
+            if (statements == null) {
+                try {
+                    statements = new Reader(buffer, strings, fallback).statements();
+                } catch (RuntimeException e) {
+                    if (fallback == null) throw e;
+                    statements = fallback.body(index);
+                }
+                buffer = null;
+            }
+            return statements;
+        }
+
+        @Override
+        public Stmt get(int index) {
+            return statements().get(index);
+        }
+
+        @Override
+        public int size() {
+            return statements().size();
+        }
+    }
+
+    // The bodies of a freshly parsed tree, which is the cached one over
+    // again: the key is the source's hash and every pass is deterministic,
+    // so its functions number the same way the Writer numbered them.
+    private static class Fallback {
+        private final Supplier<List<Stmt>> parse;
+        private List<List<Stmt>> bodies;
+
+        Fallback(Supplier<List<Stmt>> parse) {
+            this.parse = parse;
+        }
+
+        List<Stmt> body(int index) {
+            if (bodies == null) {
+                Writer writer = new Writer();
+                writer.bodies = new ArrayList<>();
+                writer.statements(parse.get());
+                bodies = writer.bodies;
+            }
+            return bodies.get(index);
+        }
+    }
+}
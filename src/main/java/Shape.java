@@ -0,0 +1,57 @@
+// package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Hidden class for LoxInstance fields. A shape is the ordered list of field
+// symbol ids an instance has acquired, stored as a chain back to the empty ROOT;
+// instances built by the same code share shapes through the transition
+// tree and keep only a value array of their own.
+class Shape {
+    static final Shape ROOT = new Shape(null, -1);
+
+    private final Shape parent;
+    private final int symbol;
+    // Index of this shape's field in the instance's value array, which is
+    // also the number of fields before it.
+    final int index;
+    private Map<Integer, Shape> transitions;
+
+    private Shape(Shape parent, int symbol) {
+        this.parent = parent;
+        this.symbol = symbol;
+        this.index = parent == null ? -1 : parent.index + 1;
+    }
+
+    int size() {
+        return index + 1;
+    }
+
+    // Only reached on inline cache misses, so a walk up the chain is enough.
+    int indexOf(int field) {
+        for (Shape shape = this; shape.parent != null; shape = shape.parent) {
+            if (shape.symbol == field) return shape.index;
+        }
+        return -1;
+    }
+
+    // Symbol of the field at index, which this shape must include.
+    int symbolAt(int index) {
+        Shape shape = this;
+        while (shape.index != index) {
+            shape = shape.parent;
+        }
+        return shape.symbol;
+    }
+
+    // Shapes are shared by every interpreter in the process.
+    synchronized Shape with(int field) {
+        if (transitions == null) transitions = new HashMap<>();
+        Shape next = transitions.get(field);
+        if (next == null) {
+            next = new Shape(this, field);
+            transitions.put(field, next);
+        }
+        return next;
+    }
+}
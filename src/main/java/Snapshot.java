@@ -0,0 +1,348 @@
+// package com.craftinginterpreters.lox;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Saves an interpreter's globals, and everything reachable from them, to
+// a file another run restores before its own script. A prelude of classes
+// and functions then runs once rather than at every start.
+//
+// The file holds the declarations of every function in the heap, encoded
+// as ScriptCache does, then a stream of records. CREATE records build
+// objects in dependency order: an environment after its enclosing one, a
+// function after its closure, a class after its superclass and methods,
+// so final fields are set at construction. FILL records then supply what
+// can point back up the graph: global and local variables and instance
+// fields. Natives are saved by their global name and reattached to the
+// restoring interpreter's own.
+class Snapshot {
+    private static final int MAGIC = 0x4c4f5853; // "LOXS"
+    private static final int VERSION = 1;
+
+    // Records.
+    private static final byte GLOBALS = 0;
+    private static final byte ENVIRONMENT = 1;
+    private static final byte FUNCTION = 2;
+    private static final byte CLASS = 3;
+    private static final byte INSTANCE = 4;
+    private static final byte NATIVE = 5;
+    private static final byte FILL_GLOBALS = 6;
+    private static final byte FILL_ENVIRONMENT = 7;
+    private static final byte FILL_INSTANCE = 8;
+
+    // Value tags.
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte OBJECT = 5;
+
+    static void save(Interpreter interpreter, Path file) throws IOException {
+        Writer writer = new Writer(interpreter.globals);
+        writer.ref(interpreter.globals);
+        writer.drain();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        byte[] declarations = ScriptCache.encode(new ArrayList<>(writer.declarations.keySet()));
+        out.writeInt(declarations.length);
+        out.write(declarations);
+        writer.bytes.writeTo(out);
+        Files.write(file, bytes.toByteArray());
+    }
+
+    static void restore(Interpreter interpreter, Path file) throws IOException {
+        ByteBuffer buffer = Lox.readSource(file);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("not a snapshot from this version");
+            }
+            int length = buffer.getInt();
+            List<Stmt> declarations = ScriptCache.decode(buffer.slice(buffer.position(), length));
+            if (declarations == null) {
+                throw new IOException("unreadable declarations");
+            }
+            buffer.position(buffer.position() + length);
+            new Reader(interpreter.globals, declarations, buffer).read();
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt snapshot", e);
+        }
+    }
+
+    private static class Writer {
+        private final Environment globals;
+        // Natives by identity, so any global still holding one is found.
+        private final Map<Object, String> natives = new IdentityHashMap<>();
+        final Map<Object, Integer> ids = new IdentityHashMap<>();
+        final Map<Stmt.Function, Integer> declarations = new LinkedHashMap<>();
+        // Objects whose FILL record is still to be written.
+        private final Deque<Object> pending = new ArrayDeque<>();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Writer(Environment globals) {
+            this.globals = globals;
+            for (Map.Entry<String, Object> global : globals.globals().entrySet()) {
+                Object value = global.getValue();
+                if (value instanceof LoxCallable && !(value instanceof LoxFunction) &&
+                    !(value instanceof LoxClass)) {
+                    natives.putIfAbsent(value, global.getKey());
+                }
+            }
+        }
+
+        // Id of object, writing its CREATE record, and first those of
+        // everything it needs at construction, if not yet done.
+        int ref(Object object) throws IOException {
+            Integer id = ids.get(object);
+            if (id != null) return id;
+            if (object == globals) {
+                out.writeByte(GLOBALS);
+                pending.add(object);
+            } else if (object instanceof Environment) {
+                Environment environment = (Environment) object;
+                int enclosing = ref(environment.enclosing);
+                out.writeByte(ENVIRONMENT);
+                out.writeInt(enclosing);
+                out.writeInt(environment.slots.length);
+                pending.add(object);
+            } else if (object instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) object;
+                int closure = ref(function.closure);
+                int receiver = function.receiver == null ? -1 : ref(function.receiver);
+                Integer declaration = declarations.get(function.declaration);
+                if (declaration == null) {
+                    declaration = declarations.size();
+                    declarations.put(function.declaration, declaration);
+                }
+                out.writeByte(FUNCTION);
+                out.writeInt(declaration);
+                out.writeInt(closure);
+                out.writeBoolean(function.isInitializer);
+                out.writeInt(receiver);
+            } else if (object instanceof LoxClass) {
+                LoxClass klass = (LoxClass) object;
+                int superclass = klass.superclass == null ? -1 : ref(klass.superclass);
+                Map<String, Integer> methods = new LinkedHashMap<>();
+                for (Map.Entry<String, LoxFunction> method : klass.methods.entrySet()) {
+                    methods.put(method.getKey(), ref(method.getValue()));
+                }
+                out.writeByte(CLASS);
+                string(klass.name);
+                out.writeInt(superclass);
+                out.writeInt(methods.size());
+                for (Map.Entry<String, Integer> method : methods.entrySet()) {
+                    string(method.getKey());
+                    out.writeInt(method.getValue());
+                }
+            } else if (object instanceof LoxInstance) {
+                int klass = ref(((LoxInstance) object).klass);
+                out.writeByte(INSTANCE);
+                out.writeInt(klass);
+                pending.add(object);
+            } else if (natives.containsKey(object)) {
+                out.writeByte(NATIVE);
+                string(natives.get(object));
+            } else {
+                throw new IOException("cannot save " + object);
+            }
+            id = ids.size();
+            ids.put(object, id);
+            return id;
+        }
+
+        // Writes FILL records until every created object has its contents.
+        void drain() throws IOException {
+            while (!pending.isEmpty()) {
+                Object object = pending.poll();
+                if (object == globals) {
+                    Map<String, Object> values = globals.globals();
+                    refs(values.values());
+                    out.writeByte(FILL_GLOBALS);
+                    entries(values);
+                } else if (object instanceof Environment) {
+                    Environment environment = (Environment) object;
+                    List<Object> values = new ArrayList<>();
+                    for (int slot = 0; slot < environment.slots.length; slot++) {
+                        values.add(environment.getAt(0, slot));
+                    }
+                    refs(values);
+                    out.writeByte(FILL_ENVIRONMENT);
+                    out.writeInt(ids.get(object));
+                    out.writeInt(values.size());
+                    for (Object value : values) {
+                        value(value);
+                    }
+                } else {
+                    Map<String, Object> fields = ((LoxInstance) object).fields();
+                    refs(fields.values());
+                    out.writeByte(FILL_INSTANCE);
+                    out.writeInt(ids.get(object));
+                    entries(fields);
+                }
+            }
+        }
+
+        // Creates the objects among values before a FILL refers to them.
+        private void refs(Collection<Object> values) throws IOException {
+            for (Object value : values) {
+                if (value != null && !(value instanceof Boolean) &&
+                    !(value instanceof Double) && !(value instanceof String)) {
+                    ref(value);
+                }
+            }
+        }
+
+        private void entries(Map<String, Object> entries) throws IOException {
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                string(entry.getKey());
+                value(entry.getValue());
+            }
+        }
+
+        private void value(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((Double) value);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                string((String) value);
+            } else {
+                out.writeByte(OBJECT);
+                out.writeInt(ids.get(value));
+            }
+        }
+
+        private void string(String string) throws IOException {
+            byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+    }
+
+    private static class Reader {
+        private final Environment globals;
+        private final List<Stmt> declarations;
+        private final ByteBuffer buffer;
+        private final List<Object> objects = new ArrayList<>();
+
+        Reader(Environment globals, List<Stmt> declarations, ByteBuffer buffer) {
+            this.globals = globals;
+            this.declarations = declarations;
+            this.buffer = buffer;
+        }
+
+        void read() throws IOException {
+            while (buffer.hasRemaining()) {
+                record(buffer.get());
+            }
+        }
+
+        private void record(byte tag) throws IOException {
+            switch (tag) {
+                case GLOBALS:
+                    objects.add(globals);
+                    break;
+                case ENVIRONMENT: {
+                    Environment enclosing = (Environment) object(buffer.getInt());
+                    objects.add(new Environment(enclosing, buffer.getInt()));
+                    break;
+                }
+                case FUNCTION: {
+                    Stmt.Function declaration = (Stmt.Function) declarations.get(buffer.getInt());
+                    Environment closure = (Environment) object(buffer.getInt());
+                    LoxFunction function = new LoxFunction(declaration, closure, buffer.get() != 0);
+                    int receiver = buffer.getInt();
+                    if (receiver >= 0) {
+                        function = function.bind((LoxInstance) object(receiver));
+                    }
+                    objects.add(function);
+                    break;
+                }
+                case CLASS: {
+                    String name = string();
+                    int superclass = buffer.getInt();
+                    int count = buffer.getInt();
+                    Map<String, LoxFunction> methods = new HashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        String method = string();
+                        methods.put(method, (LoxFunction) object(buffer.getInt()));
+                    }
+                    objects.add(new LoxClass(name,
+                        superclass < 0 ? null : (LoxClass) object(superclass), methods));
+                    break;
+                }
+                case INSTANCE:
+                    objects.add(new LoxInstance((LoxClass) object(buffer.getInt())));
+                    break;
+                case NATIVE: {
+                    String name = string();
+                    Object value = globals.globals().get(name);
+                    if (!(value instanceof LoxCallable)) {
+                        throw new IOException("no native '" + name + "'");
+                    }
+                    objects.add(value);
+                    break;
+                }
+                case FILL_GLOBALS: {
+                    int count = buffer.getInt();
+                    for (int i = 0; i < count; i++) {
+                        String name = string();
+                        globals.define(name, value());
+                    }
+                    break;
+                }
+                case FILL_ENVIRONMENT: {
+                    Environment environment = (Environment) object(buffer.getInt());
+                    int count = buffer.getInt();
+                    for (int i = 0; i < count; i++) {
+                        environment.push(value());
+                    }
+                    break;
+                }
+                case FILL_INSTANCE: {
+                    LoxInstance instance = (LoxInstance) object(buffer.getInt());
+                    int count = buffer.getInt();
+                    for (int i = 0; i < count; i++) {
+                        String name = string();
+                        instance.put(name, value());
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("bad record " + tag);
+            }
+        }
+
+        private Object object(int id) {
+            return objects.get(id);
+        }
+
+        private Object value() {
+            switch (buffer.get()) {
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return buffer.getDouble();
+                case STRING: return string();
+                case OBJECT: return object(buffer.getInt());
+                default: return null;
+            }
+        }
+
+        private String string() {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+// package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for `--stats`, reported when the script ends. Every hook is
+// guarded by ENABLED, a constant read once from the lox.stats property, so
+// with it off the JIT drops the hooks altogether; Main sets the property
+// before anything has loaded this class. The counters are LongAdders,
+// striped per thread, so a count is an uncontended add wherever it comes
+// from.
+//
+// Only what passes through Environment, LoxFunction and LoxInstance is
+// seen: the jvm engine's compiled slot accesses hop frames inline, and the
+// vm engine has objects of its own.
+class Stats {
+    static final boolean ENABLED = Boolean.getBoolean("lox.stats");
+
+    static final int ENVIRONMENTS = 0;
+    static final int LOCAL_ACCESSES = 1;
+    static final int HOPS = 2;
+    static final int GLOBAL_LOOKUPS = 3;
+    static final int BINDS = 4;
+    static final int INSTANCES = 5;
+    static final int FIELD_MISSES = 6;
+
+    private static final String[] NAMES = {
+        "environments allocated",
+        "local accesses",
+        "frame hops",
+        "global lookups",
+        "methods bound",
+        "instances created",
+        "field misses to findMethod",
+    };
+
+    private static final LongAdder[] counters = adders(ENABLED ? NAMES.length : 0);
+    // A call passes at most 255 arguments.
+    private static final LongAdder[] calls = adders(ENABLED ? 256 : 0);
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    static void count(int counter) {
+        counters[counter].increment();
+    }
+
+    // One local access that walked `hops` frames out.
+    static void access(int hops) {
+        counters[LOCAL_ACCESSES].increment();
+        if (hops > 0) counters[HOPS].add(hops);
+    }
+
+    static void call(int arity) {
+        calls[arity].increment();
+    }
+
+    static void report(PrintStream out) {
+        out.println("Runtime statistics:");
+        for (int i = 0; i < NAMES.length; i++) {
+            out.printf("  %-28s %14d%n", NAMES[i], counters[i].sum());
+        }
+        long accesses = counters[LOCAL_ACCESSES].sum();
+        if (accesses > 0) {
+            out.printf("  %-28s %14.2f%n", "hops per local access",
+                (double) counters[HOPS].sum() / accesses);
+        }
+        out.println("  calls by arity:");
+        for (int arity = 0; arity < calls.length; arity++) {
+            long count = calls[arity].sum();
+            if (count > 0) {
+                out.printf("    %-26d %14d%n", arity, count);
+            }
+        }
+    }
+}
@@ -20,6 +20,8 @@ abstract class Stmt {
   // stmt-Block
   static class Block extends Stmt {
     final List<Stmt> statements;
+    // Number of locals declared directly in the block, set by the Resolver.
+    int frameSize;
 
     Block(List<Stmt> statements) {
       this.statements = statements;
@@ -68,6 +70,10 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    // Parameters plus the locals declared at the top of the body.
+    int frameSize;
+    // The body as JVM bytecode, when it has been through JvmCompiler.
+    JvmCode compiled;
 
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
@@ -0,0 +1,46 @@
+// package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Process-wide identifier table. Every distinct name gets a dense int id
+// and one canonical String, so runtime lookups index by id or compare by
+// identity instead of hashing and comparing characters. Reads are lock-free;
+// only a first sighting takes the lock, which batch mode's parallel
+// scanners may contend on.
+class Symbols {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[256];
+    private static int count = 0;
+
+    static int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        synchronized (Symbols.class) {
+            id = ids.get(name);
+            if (id != null) return id;
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+            }
+            names[count] = name;
+            // Published only once its name is in place.
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    // Ids handed out so far; every id below it names a symbol.
+    static synchronized int count() {
+        return count;
+    }
+
+    static String name(int id) {
+        return names[id];
+    }
+
+    // Canonical copy of a name, for lookups keyed on identity.
+    static String canonical(String name) {
+        return name(intern(name));
+    }
+}
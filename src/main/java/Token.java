@@ -6,12 +6,21 @@ class Token {
     final String lexeme;
     final Object literal;
     final int line; // [location]
+    // Symbols id for identifiers, whose lexeme is then the canonical copy;
+    // -1 for every other token.
+    final int symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line,
+            type == TokenType.IDENTIFIER ? Symbols.intern(lexeme) : -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
         this.type = type;
-        this.lexeme = lexeme;
+        this.lexeme = symbol >= 0 ? Symbols.name(symbol) : lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString() {
@@ -0,0 +1,166 @@
+// package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+// Scanned tokens as parallel arrays rather than a Token object each: type
+// ordinal, source offset, length, line, the symbol id of identifiers and
+// the value of numbers. The buffer is a window the Scanner refills as the
+// reader moves on, so memory stays fixed however long the source is. It
+// doubles as the reader's cursor; Parser and the tokenize command both
+// walk it. A Token, with its lexeme and literal, is only built when the
+// parser asks for one.
+class TokenBuffer {
+    private static final int WINDOW = 4096;
+    private static final TokenType[] TYPES = TokenType.values();
+    // Lexeme of every token type whose text is always the same.
+    private static final String[] FIXED = new String[TYPES.length];
+    static {
+        String punctuation = "(){},.-+;*!=<>/";
+        TokenType[] single = {
+            TokenType.LEFT_PAREN, TokenType.RIGHT_PAREN, TokenType.LEFT_BRACE, TokenType.RIGHT_BRACE,
+            TokenType.COMMA, TokenType.DOT, TokenType.MINUS, TokenType.PLUS, TokenType.SEMICOLON,
+            TokenType.STAR, TokenType.BANG, TokenType.EQUAL, TokenType.LESS, TokenType.GREATER,
+            TokenType.SLASH
+        };
+        for (int i = 0; i < single.length; i++) {
+            FIXED[single[i].ordinal()] = String.valueOf(punctuation.charAt(i));
+        }
+        FIXED[TokenType.BANG_EQUAL.ordinal()] = "!=";
+        FIXED[TokenType.EQUAL_EQUAL.ordinal()] = "==";
+        FIXED[TokenType.LESS_EQUAL.ordinal()] = "<=";
+        FIXED[TokenType.GREATER_EQUAL.ordinal()] = ">=";
+        FIXED[TokenType.EOF.ordinal()] = "";
+        for (Map.Entry<String, TokenType> keyword : Scanner.keywords.entrySet()) {
+            FIXED[keyword.getValue().ordinal()] = keyword.getKey();
+        }
+    }
+
+    private final Scanner scanner;
+    private final int window;
+    private final int[] types;
+    private final int[] starts;
+    private final int[] lengths;
+    private final int[] lines;
+    // Symbol id of each identifier, which also gives its lexeme.
+    private final int[] symbols;
+    // Value the Scanner computed for a number; NaN when it left the
+    // literal to Double.parseDouble.
+    private final double[] numbers;
+    private int count = 0;
+    // Index of the next unconsumed token; the one before it is "previous".
+    private int current = 0;
+
+    TokenBuffer(Scanner scanner) {
+        this.scanner = scanner;
+        // Every token but EOF takes at least a byte, so a short source
+        // fits in a window of its length; one more keeps room for the
+        // previous token on a slide.
+        window = Math.min(WINDOW, scanner.length() + 2);
+        types = new int[window];
+        starts = new int[window];
+        lengths = new int[window];
+        lines = new int[window];
+        symbols = new int[window];
+        numbers = new double[window];
+        scanner.fill(this);
+    }
+
+    // Called by the Scanner while filling.
+    boolean isFull() {
+        return count == window;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        add(type, start, length, line, -1);
+    }
+
+    void add(TokenType type, int start, int length, int line, int symbol) {
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        symbols[count] = symbol;
+        count++;
+    }
+
+    void add(TokenType type, int start, int length, int line, double number) {
+        numbers[count] = number;
+        add(type, start, length, line, -1);
+    }
+
+    TokenType peekType() {
+        return TYPES[types[current]];
+    }
+
+    TokenType previousType() {
+        return TYPES[types[current - 1]];
+    }
+
+    Token peek() {
+        return token(current);
+    }
+
+    Token previous() {
+        return token(current - 1);
+    }
+
+    // Stays put on EOF, which the Scanner always ends with.
+    void advance() {
+        if (types[current] == TokenType.EOF.ordinal()) return;
+        current++;
+        if (current == count) {
+            slide();
+        }
+    }
+
+    void skipToEnd() {
+        while (types[current] != TokenType.EOF.ordinal()) {
+            advance();
+        }
+    }
+
+    // Keeps the previous token at index 0 and refills the rest.
+    private void slide() {
+        int last = count - 1;
+        types[0] = types[last];
+        starts[0] = starts[last];
+        lengths[0] = lengths[last];
+        lines[0] = lines[last];
+        symbols[0] = symbols[last];
+        numbers[0] = numbers[last];
+        count = 1;
+        current = 1;
+        scanner.fill(this);
+    }
+
+    // Appends the next token as Token.toString() would print it, without
+    // building the Token.
+    void appendPeek(StringBuilder out) {
+        TokenType type = peekType();
+        out.append(type).append(' ').append(lexeme(current)).append(' ').append(literal(current));
+    }
+
+    private Token token(int index) {
+        return new Token(TYPES[types[index]], lexeme(index), literal(index), lines[index], symbols[index]);
+    }
+
+    private String lexeme(int index) {
+        String fixed = FIXED[types[index]];
+        if (fixed != null) return fixed;
+        if (types[index] == TokenType.IDENTIFIER.ordinal()) return Symbols.name(symbols[index]);
+        return scanner.text(starts[index], starts[index] + lengths[index]);
+    }
+
+    private Object literal(int index) {
+        int type = types[index];
+        if (type == TokenType.STRING.ordinal()) {
+            // Trim the surrounding quotes.
+            return scanner.text(starts[index] + 1, starts[index] + lengths[index] - 1);
+        }
+        if (type == TokenType.NUMBER.ordinal()) {
+            if (!Double.isNaN(numbers[index])) return numbers[index];
+            return Double.parseDouble(lexeme(index));
+        }
+        return null;
+    }
+}
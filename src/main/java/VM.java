@@ -0,0 +1,697 @@
+// package com.craftinginterpreters.lox;
+
+import java.util.*;
+
+// Stack-based virtual machine that runs the output of Compiler. Values are
+// the same Java objects the tree-walker uses (Double, String, Boolean, null)
+// so printing, equality and truthiness match Interpreter exactly.
+//
+// Globals and instance fields are found the tree-walker's way, by symbol id
+// and through shapes and inline caches. Numbers are not: every arithmetic
+// result is a boxed Double on the stack, while the tree-walker keeps them
+// unboxed, so the tree-walker is now the faster engine on numeric and
+// call-heavy code. This one is kept as a reference, not for speed.
+class VM {
+    private static final int FRAMES_MAX = 1 << 16;
+    // Marks a global symbol that has no definition.
+    private static final Object UNDEFINED = new Object();
+
+    // A compiled function: its code plus what the VM needs to call it.
+    static class Proto {
+        final String name;
+        final int arity;
+        final Chunk chunk = new Chunk();
+        int upvalueCount = 0;
+        int maxStack = 0;
+
+        Proto(String name, int arity) {
+            this.name = name;
+            this.arity = arity;
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + name + ">";
+        }
+    }
+
+    // A variable captured by a closure. While open it refers to a slot on
+    // the VM stack; once that slot goes out of scope the value moves here.
+    static class Upvalue {
+        final int slot;
+        Object closed;
+        boolean open = true;
+        Upvalue next;
+
+        Upvalue(int slot, Upvalue next) {
+            this.slot = slot;
+            this.next = next;
+        }
+    }
+
+    static class Closure {
+        final Proto function;
+        final Upvalue[] upvalues;
+
+        Closure(Proto function) {
+            this.function = function;
+            this.upvalues = new Upvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    static class Klass {
+        final String name;
+        final Map<String, Closure> methods = new HashMap<>();
+        Closure initializer;
+
+        Klass(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class Instance {
+        private static final Object[] NO_FIELDS = new Object[0];
+
+        final Klass klass;
+        // Laid out as LoxInstance's are: names in the shared shape, values
+        // here, found through the instruction's inline cache.
+        private Shape shape = Shape.ROOT;
+        private Object[] values = NO_FIELDS;
+
+        Instance(Klass klass) {
+            this.klass = klass;
+        }
+
+        // Index of the named field, or -1 when the instance has none.
+        int fieldIndex(InlineCache cache, String name) {
+            int entry = cache.find(shape);
+            if (entry >= 0) {
+                return cache.index(entry);
+            }
+            int index = shape.indexOf(Symbols.intern(name));
+            cache.add(shape, index, null);
+            return index;
+        }
+
+        Object field(int index) {
+            return values[index];
+        }
+
+        void set(InlineCache cache, String name, Object value) {
+            int entry = cache.find(shape);
+            if (entry >= 0) {
+                Shape transition = cache.transition(entry);
+                if (transition == null) {
+                    values[cache.index(entry)] = value;
+                } else {
+                    append(transition, value);
+                }
+                return;
+            }
+            int symbol = Symbols.intern(name);
+            int index = shape.indexOf(symbol);
+            if (index >= 0) {
+                cache.add(shape, index, null);
+                values[index] = value;
+            } else {
+                Shape next = shape.with(symbol);
+                cache.add(shape, next.index, next);
+                append(next, value);
+            }
+        }
+
+        private void append(Shape next, Object value) {
+            if (next.index >= values.length) {
+                values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+            }
+            values[next.index] = value;
+            shape = next;
+        }
+
+        @Override
+        public String toString() {
+            return klass.name + " instance";
+        }
+    }
+
+    static class BoundMethod {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+
+    interface NativeFunction {
+        Object call(Object[] arguments);
+    }
+
+    static class Native {
+        final int arity;
+        final NativeFunction function;
+
+        Native(int arity, NativeFunction function) {
+            this.arity = arity;
+            this.function = function;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null;
+    // Indexed by Symbols id, as the tree-walker's global Environment is.
+    // Every global instruction's symbol is interned before the code runs,
+    // so the array is sized once, in interpret().
+    private Object[] globals = new Object[0];
+
+    VM() {
+        define("clock", new Native(0,
+            arguments -> (double)System.currentTimeMillis() / 1000.0));
+        define("clockNanos", new Native(0,
+            arguments -> (double)System.nanoTime()));
+    }
+
+    private void define(String name, Object value) {
+        int symbol = Symbols.intern(name);
+        if (symbol >= globals.length) growGlobals(symbol + 1);
+        globals[symbol] = value;
+    }
+
+    private void growGlobals(int size) {
+        int length = globals.length;
+        globals = Arrays.copyOf(globals, Math.max(size, length * 2));
+        Arrays.fill(globals, length, globals.length, UNDEFINED);
+    }
+
+    void interpret(Proto script) {
+        growGlobals(Symbols.count());
+        Closure closure = new Closure(script);
+        stack[sp++] = closure;
+        try {
+            call(closure, 0, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        Object[] stack = this.stack;
+        Object[] globals = this.globals;
+        int ip = frame.ip;
+        int base = frame.base;
+        int sp = this.sp;
+
+        try {
+            for (;;) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT: {
+                        stack[sp++] = constants[readShort(code, ip)];
+                        ip += 2;
+                        break;
+                    }
+                    case OpCode.NIL: stack[sp++] = null; break;
+                    case OpCode.TRUE: stack[sp++] = Boolean.TRUE; break;
+                    case OpCode.FALSE: stack[sp++] = Boolean.FALSE; break;
+                    case OpCode.POP: stack[--sp] = null; break;
+                    case OpCode.GET_LOCAL: {
+                        stack[sp++] = stack[base + (code[ip++] & 0xff)];
+                        break;
+                    }
+                    case OpCode.SET_LOCAL: {
+                        stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                        break;
+                    }
+                    case OpCode.GET_GLOBAL: {
+                        int symbol = readShort(code, ip);
+                        ip += 2;
+                        Object value = globals[symbol];
+                        if (value == UNDEFINED) {
+                            throw error(frame, ip, "Undefined variable '" + Symbols.name(symbol) + "'.");
+                        }
+                        stack[sp++] = value;
+                        break;
+                    }
+                    case OpCode.DEFINE_GLOBAL: {
+                        globals[readShort(code, ip)] = stack[--sp];
+                        ip += 2;
+                        stack[sp] = null;
+                        break;
+                    }
+                    case OpCode.SET_GLOBAL: {
+                        int symbol = readShort(code, ip);
+                        ip += 2;
+                        if (globals[symbol] == UNDEFINED) {
+                            throw error(frame, ip, "Undefined variable '" + Symbols.name(symbol) + "'.");
+                        }
+                        globals[symbol] = stack[sp - 1];
+                        break;
+                    }
+                    case OpCode.GET_UPVALUE: {
+                        Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        stack[sp++] = upvalue.open ? stack[upvalue.slot] : upvalue.closed;
+                        break;
+                    }
+                    case OpCode.SET_UPVALUE: {
+                        Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        if (upvalue.open) {
+                            stack[upvalue.slot] = stack[sp - 1];
+                        } else {
+                            upvalue.closed = stack[sp - 1];
+                        }
+                        break;
+                    }
+                    case OpCode.GET_PROPERTY: {
+                        InlineCache cache = frame.closure.function.chunk.cache(ip - 1);
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(stack[sp - 1] instanceof Instance)) {
+                            throw error(frame, ip, "Only instances have properties.");
+                        }
+                        Instance instance = (Instance) stack[sp - 1];
+                        int index = instance.fieldIndex(cache, name);
+                        if (index >= 0) {
+                            stack[sp - 1] = instance.field(index);
+                            break;
+                        }
+                        Closure method = instance.klass.methods.get(name);
+                        if (method == null) {
+                            throw error(frame, ip, "Undefined property '" + name + "'.");
+                        }
+                        stack[sp - 1] = new BoundMethod(instance, method);
+                        break;
+                    }
+                    case OpCode.SET_PROPERTY: {
+                        InlineCache cache = frame.closure.function.chunk.cache(ip - 1);
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(stack[sp - 2] instanceof Instance)) {
+                            throw error(frame, ip, "Only instances have fields.");
+                        }
+                        Object value = stack[--sp];
+                        ((Instance) stack[sp - 1]).set(cache, name, value);
+                        stack[sp - 1] = value;
+                        stack[sp] = null;
+                        break;
+                    }
+                    case OpCode.GET_SUPER: {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        Klass superclass = (Klass) stack[--sp];
+                        stack[sp] = null;
+                        Closure method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw error(frame, ip, "Undefined property '" + name + "'.");
+                        }
+                        stack[sp - 1] = new BoundMethod(stack[sp - 1], method);
+                        break;
+                    }
+                    case OpCode.EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.NOT_EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.GREATER: {
+                        checkNumberOperands(frame, ip, stack[sp - 2], stack[sp - 1]);
+                        double b = (Double) stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = (Double) stack[sp - 1] > b;
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        checkNumberOperands(frame, ip, stack[sp - 2], stack[sp - 1]);
+                        double b = (Double) stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = (Double) stack[sp - 1] >= b;
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        checkNumberOperands(frame, ip, stack[sp - 2], stack[sp - 1]);
+                        double b = (Double) stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = (Double) stack[sp - 1] < b;
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        checkNumberOperands(frame, ip, stack[sp - 2], stack[sp - 1]);
+                        double b = (Double) stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = (Double) stack[sp - 1] <= b;
+                        break;
+                    }
+                    case OpCode.ADD: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        stack[sp] = null;
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[sp - 1] = (Double) a + (Double) b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stack[sp - 1] = (String) a + (String) b;
+                        } else {
+                            throw error(frame, ip, "Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT: {
+                        checkNumberOperands(frame, ip, stack[sp - 2], stack[sp - 1]);
+                        double b = (Double) stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = (Double) stack[sp - 1] - b;
+                        break;
+                    }
+                    case OpCode.MULTIPLY: {
+                        checkNumberOperands(frame, ip, stack[sp - 2], stack[sp - 1]);
+                        double b = (Double) stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = (Double) stack[sp - 1] * b;
+                        break;
+                    }
+                    case OpCode.DIVIDE: {
+                        checkNumberOperands(frame, ip, stack[sp - 2], stack[sp - 1]);
+                        double b = (Double) stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = (Double) stack[sp - 1] / b;
+                        break;
+                    }
+                    case OpCode.NOT: {
+                        stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                        break;
+                    }
+                    case OpCode.NEGATE: {
+                        if (!(stack[sp - 1] instanceof Double)) {
+                            throw error(frame, ip, "Operand must be a number.");
+                        }
+                        stack[sp - 1] = -(Double) stack[sp - 1];
+                        break;
+                    }
+                    case OpCode.PRINT: {
+                        System.out.println(Interpreter.stringify(stack[--sp]));
+                        stack[sp] = null;
+                        break;
+                    }
+                    case OpCode.JUMP: {
+                        ip += readShort(code, ip) + 2;
+                        break;
+                    }
+                    case OpCode.JUMP_IF_FALSE: {
+                        if (isTruthy(stack[sp - 1])) {
+                            ip += 2;
+                        } else {
+                            ip += readShort(code, ip) + 2;
+                        }
+                        break;
+                    }
+                    case OpCode.LOOP: {
+                        ip -= readShort(code, ip) - 2;
+                        break;
+                    }
+                    case OpCode.CALL:
+                    case OpCode.INVOKE:
+                    case OpCode.SUPER_INVOKE: {
+                        byte op = code[ip - 1];
+                        int argCount;
+                        frame.ip = ip;
+                        this.sp = sp;
+                        if (op == OpCode.CALL) {
+                            argCount = code[ip] & 0xff;
+                            frame.ip = ip + 1;
+                            callValue(stack[sp - argCount - 1], argCount, ip + 1);
+                        } else {
+                            String name = (String) constants[readShort(code, ip)];
+                            argCount = code[ip + 2] & 0xff;
+                            frame.ip = ip + 3;
+                            if (op == OpCode.INVOKE) {
+                                invoke(name, frame.closure.function.chunk.cache(ip - 1), argCount, ip + 3);
+                            } else {
+                                Klass superclass = (Klass) stack[--this.sp];
+                                stack[this.sp] = null;
+                                invokeFromClass(superclass, name, argCount, ip + 3);
+                            }
+                        }
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        stack = this.stack;
+                        ip = frame.ip;
+                        base = frame.base;
+                        sp = this.sp;
+                        break;
+                    }
+                    case OpCode.CLOSURE: {
+                        Proto function = (Proto) constants[readShort(code, ip)];
+                        ip += 2;
+                        Closure closure = new Closure(function);
+                        for (int i = 0; i < closure.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = code[ip++] & 0xff;
+                            closure.upvalues[i] = isLocal
+                                ? captureUpvalue(base + index)
+                                : frame.closure.upvalues[index];
+                        }
+                        stack[sp++] = closure;
+                        break;
+                    }
+                    case OpCode.CLOSE_UPVALUE: {
+                        closeUpvalues(sp - 1);
+                        stack[--sp] = null;
+                        break;
+                    }
+                    case OpCode.RETURN: {
+                        Object result = stack[--sp];
+                        closeUpvalues(base);
+                        frameCount--;
+                        if (frameCount == 0) {
+                            Arrays.fill(stack, 0, sp, null);
+                            this.sp = 0;
+                            return;
+                        }
+                        // Drop the callee and its arguments and locals.
+                        Arrays.fill(stack, base, sp, null);
+                        sp = base;
+                        stack[sp++] = result;
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    case OpCode.CLASS: {
+                        stack[sp++] = new Klass((String) constants[readShort(code, ip)]);
+                        ip += 2;
+                        break;
+                    }
+                    case OpCode.INHERIT: {
+                        Object superclass = stack[sp - 2];
+                        if (!(superclass instanceof Klass)) {
+                            throw error(frame, ip, "Superclass must be a class.");
+                        }
+                        Klass subclass = (Klass) stack[--sp];
+                        stack[sp] = null;
+                        // Copy-down inheritance: methods declared in the
+                        // subclass afterwards simply overwrite these.
+                        subclass.methods.putAll(((Klass) superclass).methods);
+                        subclass.initializer = ((Klass) superclass).initializer;
+                        break;
+                    }
+                    case OpCode.METHOD: {
+                        String name = (String) constants[readShort(code, ip)];
+                        ip += 2;
+                        Closure method = (Closure) stack[--sp];
+                        stack[sp] = null;
+                        Klass klass = (Klass) stack[sp - 1];
+                        klass.methods.put(name, method);
+                        if (name.equals("init")) {
+                            klass.initializer = method;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+                }
+            }
+        } finally {
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    private void callValue(Object callee, int argCount, int ip) {
+        if (callee instanceof Closure) {
+            call((Closure) callee, argCount, ip);
+            return;
+        }
+        if (callee instanceof BoundMethod) {
+            BoundMethod bound = (BoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount, ip);
+            return;
+        }
+        if (callee instanceof Klass) {
+            Klass klass = (Klass) callee;
+            stack[sp - argCount - 1] = new Instance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount, ip);
+            } else if (argCount != 0) {
+                throw error(frames[frameCount - 1], ip,
+                    "Expected 0 arguments but got " + argCount + ".");
+            }
+            return;
+        }
+        if (callee instanceof Native) {
+            Native function = (Native) callee;
+            if (argCount != function.arity) {
+                throw error(frames[frameCount - 1], ip, "Expected " +
+                    function.arity + " arguments but got " + argCount + ".");
+            }
+            Object[] arguments = Arrays.copyOfRange(stack, sp - argCount, sp);
+            Object result = function.function.call(arguments);
+            Arrays.fill(stack, sp - argCount - 1, sp, null);
+            sp -= argCount + 1;
+            stack[sp++] = result;
+            return;
+        }
+        throw error(frames[frameCount - 1], ip, "Can only call functions and classes.");
+    }
+
+    private void invoke(String name, InlineCache cache, int argCount, int ip) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof Instance)) {
+            throw error(frames[frameCount - 1], ip, "Only instances have properties.");
+        }
+        Instance instance = (Instance) receiver;
+        int index = instance.fieldIndex(cache, name);
+        if (index >= 0) {
+            Object field = instance.field(index);
+            stack[sp - argCount - 1] = field;
+            callValue(field, argCount, ip);
+            return;
+        }
+        invokeFromClass(instance.klass, name, argCount, ip);
+    }
+
+    private void invokeFromClass(Klass klass, String name, int argCount, int ip) {
+        Closure method = klass.methods.get(name);
+        if (method == null) {
+            throw error(frames[frameCount - 1], ip, "Undefined property '" + name + "'.");
+        }
+        call(method, argCount, ip);
+    }
+
+    private void call(Closure closure, int argCount, int ip) {
+        if (argCount != closure.function.arity) {
+            throw error(frameCount == 0 ? null : frames[frameCount - 1], ip, "Expected " +
+                closure.function.arity + " arguments but got " + argCount + ".");
+        }
+        if (frameCount == FRAMES_MAX) {
+            throw error(frames[frameCount - 1], ip, "Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        int base = sp - argCount - 1;
+        int needed = base + closure.function.maxStack;
+        if (needed > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(needed, stack.length * 2));
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        frameCount++;
+    }
+
+    private Upvalue captureUpvalue(int slot) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+        Upvalue created = new Upvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int lastSlot) {
+        while (openUpvalues != null && openUpvalues.slot >= lastSlot) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.open = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    private void checkNumberOperands(CallFrame frame, int ip, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw error(frame, ip, "Operands must be numbers.");
+    }
+
+    // ip points just past the faulting instruction, which shares the line
+    // of its last byte.
+    private RuntimeError error(CallFrame frame, int ip, String message) {
+        int line = frame == null ? 0 : frame.closure.function.chunk.lines[ip - 1];
+        return new RuntimeError(line, message);
+    }
+}